@@ -0,0 +1,228 @@
+package org.tafia.captcha;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import org.tafia.captcha.CaptchaParse.CaptchaConfig;
+
+/**
+ * 图片处理各阶段的基准测试
+ *
+ * <p>以testcase目录下的图片和放大后的合成图片为样本，分别测量ImageFilter、ImageInciser
+ * 各阶段以及完整解析流程（含识别和不含识别）的吞吐量、平均耗时和每次操作的内存分配量。
+ * 每次操作前的准备（复制图片、二值化等前置阶段）不计入结果</p>
+ *
+ * <p>参数：[阶段名正则] [每项测量秒数] [ocr]，例如 "clear.*" 2，
+ * 只有带ocr参数时才测量含识别的完整流程</p>
+ */
+public class StageBenchmark {
+
+	/**
+	 * 预热时间占测量时间的比例
+	 */
+	private static final double WARMUP_RATIO = 0.5;
+
+	/**
+	 * 防止JIT消除结果
+	 */
+	private static volatile int sink;
+
+	/**
+	 * 准备每次操作的输入，不计入测量
+	 */
+	interface Setup {
+		Object prepare(BufferedImage fixture) throws IOException;
+	}
+
+	/**
+	 * 被测量的操作
+	 */
+	interface Operation {
+		Object run(Object input) throws IOException;
+	}
+
+	private static class Stage {
+
+		final String name;
+
+		final Setup setup;
+
+		final Operation operation;
+
+		Stage(String name, Setup setup, Operation operation) {
+			this.name = name;
+			this.setup = setup;
+			this.operation = operation;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+		boolean ocr = args.length > 2 && "ocr".equals(args[2]);
+		Map<String, List<BufferedImage>> fixtures = fixtures();
+		System.out.println(String.format(Locale.ROOT, "%-22s %-10s %10s %14s %14s %14s",
+				"stage", "fixture", "ops", "ops/s", "avg(us/op)", "alloc(B/op)"));
+		for (Stage stage : stages(ocr)) {
+			if (!filter.matcher(stage.name).matches()) continue;
+			for (Map.Entry<String, List<BufferedImage>> fixture : fixtures.entrySet()) {
+				measure(stage, fixture.getKey(), fixture.getValue(), seconds);
+			}
+		}
+	}
+
+	private static List<Stage> stages(boolean ocr) {
+		List<Stage> stages = new ArrayList<>();
+		Setup color = image -> new ImageFilter(image);
+		Setup gray = image -> new ImageFilter(image).graying();
+		Setup binary = image -> new ImageFilter(image).graying().binaryzation();
+		Setup cleaned = image -> new ImageFilter(image).graying().binaryzation().clearNoise(1).renderBinary();
+		stages.add(new Stage("graying", color, input -> ((ImageFilter) input).graying()));
+		stages.add(new Stage("binaryzation", gray, input -> ((ImageFilter) input).binaryzation()));
+		stages.add(new Stage("binaryzation128", gray, input -> ((ImageFilter) input).binaryzation(128)));
+		stages.add(new Stage("grayBinaryzation", color, input -> ((ImageFilter) input).grayBinaryzation()));
+		stages.add(new Stage("clearNoise", binary, input -> ((ImageFilter) input).clearNoise()));
+		stages.add(new Stage("clearNoise2", binary, input -> ((ImageFilter) input).clearNoise(2)));
+		stages.add(new Stage("clearBlock", binary, input -> ((ImageFilter) input).clearBlock()));
+		stages.add(new Stage("clearBlock10", binary, input -> ((ImageFilter) input).clearBlock(10)));
+		stages.add(new Stage("reitalic", color, input -> ((ImageFilter) input).reitalic()));
+		stages.add(new Stage("extractColor", color, input -> ((ImageFilter) input).extractColor()));
+		stages.add(new Stage("clearBackground", color, input -> ((ImageFilter) input).clearBackground(20)));
+		stages.add(new Stage("decreaseColor", color, input -> ((ImageFilter) input).decreaseColor(64)));
+		stages.add(new Stage("render", binary, input -> ((ImageFilter) input).render()));
+		stages.add(new Stage("fixedIncise", cleaned, input -> new ImageInciser((BinaryImage) input).fixedIncise(4)));
+		stages.add(new Stage("blankInterval", cleaned, input -> new ImageInciser((BinaryImage) input).blankInterval()));
+		stages.add(new Stage("segment", cleaned, input -> new ImageInciser((BinaryImage) input).segmentBinary(4)));
+		final CaptchaParse parser = new CaptchaParse(new CaptchaConfig.Builder()
+				.threshold(0).noise(0).block(0).build());
+		Setup none = image -> image;
+		stages.add(new Stage("pipeline", none, input -> parser.process((BufferedImage) input)));
+		if (ocr) {
+			stages.add(new Stage("pipelineOcr", none, input -> parser.parse((BufferedImage) input)));
+		}
+		return stages;
+	}
+
+	/**
+	 * 测量一个阶段在一组样本上的表现，样本轮流使用
+	 */
+	private static void measure(Stage stage, String name, List<BufferedImage> images, double seconds)
+			throws IOException {
+		run(stage, images, (long) (seconds * WARMUP_RATIO * 1e9));
+		long[] result = run(stage, images, (long) (seconds * 1e9));
+		long ops = result[0];
+		long nanos = result[1];
+		long bytes = result[2];
+		System.out.println(String.format(Locale.ROOT, "%-22s %-10s %10d %14.1f %14.3f %14s",
+				stage.name, name, ops, ops * 1e9 / nanos, nanos / 1e3 / ops,
+				bytes < 0 ? "n/a" : String.valueOf(bytes / ops)));
+	}
+
+	/**
+	 * 运行直到测量时间用完
+	 *
+	 * @return {操作次数, 操作耗时纳秒, 操作分配字节数（不支持时为-1）}
+	 */
+	private static long[] run(Stage stage, List<BufferedImage> images, long budget) throws IOException {
+		long ops = 0;
+		long nanos = 0;
+		long bytes = 0;
+		long deadline = System.nanoTime() + budget;
+		while (ops == 0 || System.nanoTime() < deadline) {
+			Object input = stage.setup.prepare(images.get((int) (ops % images.size())));
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			Object output = stage.operation.run(input);
+			nanos += System.nanoTime() - start;
+			long after = allocatedBytes();
+			if (allocated < 0 || bytes < 0) bytes = -1;
+			else bytes += after - allocated;
+			sink ^= System.identityHashCode(output);
+			ops++;
+		}
+		return new long[] {ops, nanos, bytes};
+	}
+
+	/**
+	 * 当前线程已分配的字节数，JVM不支持时返回-1
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 样本：testcase目录下的图片，放大4倍的图片，以及1920*1080的合成图片
+	 */
+	private static Map<String, List<BufferedImage>> fixtures() throws IOException {
+		File[] files = new File("testcase").listFiles((dir, name) -> name.matches("line.*\\.jpg"));
+		if (files == null || files.length == 0) throw new IOException("找不到testcase目录下的样本图片");
+		Arrays.sort(files);
+		List<BufferedImage> testcase = new ArrayList<>();
+		List<BufferedImage> scaled = new ArrayList<>();
+		for (File file : files) {
+			BufferedImage image = ImageIO.read(file);
+			testcase.add(image);
+			scaled.add(scale(image, 4));
+		}
+		Map<String, List<BufferedImage>> fixtures = new LinkedHashMap<>();
+		fixtures.put("testcase", testcase);
+		fixtures.put("scaled4x", scaled);
+		fixtures.put("1080p", Arrays.asList(synthetic(1920, 1080, 42)));
+		return fixtures;
+	}
+
+	private static BufferedImage scale(BufferedImage image, int factor) {
+		BufferedImage scaled = new BufferedImage(image.getWidth() * factor, image.getHeight() * factor,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+		g.dispose();
+		return scaled;
+	}
+
+	/**
+	 * 浅色噪声背景上的深色字符块和干扰点
+	 */
+	private static BufferedImage synthetic(int width, int height, long seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int v = 200 + random.nextInt(56);
+				image.setRGB(x, y, v << 16 | (v - random.nextInt(20)) << 8 | v);
+			}
+		}
+		for (int i = 0; i < 400; i++) {
+			g.setColor(new java.awt.Color(random.nextInt(100), random.nextInt(100), random.nextInt(100)));
+			g.fillRect(random.nextInt(width), random.nextInt(height), 4 + random.nextInt(30), 4 + random.nextInt(40));
+		}
+		g.dispose();
+		for (int i = 0; i < width * height / 50; i++) {
+			image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt(0x404040));
+		}
+		return image;
+	}
+}
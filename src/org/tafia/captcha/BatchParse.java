@@ -0,0 +1,272 @@
+package org.tafia.captcha;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.tafia.captcha.CaptchaParse.CaptchaConfig;
+
+/**
+ * 验证码批量解析
+ *
+ * <p>输入可以是目录、通配符或列表文件（每行一个路径），
+ * 图片在线程池中并行解析，结果以CSV或JSONL逐条输出。
+ * 同时提交的任务数不超过线程数的4倍，已输出的结果不再保留</p>
+ */
+public class BatchParse {
+
+	/**
+	 * 目录输入时识别的图片扩展名
+	 */
+	private static final String IMAGE_GLOB = "*.{jpg,jpeg,png,gif,bmp,tif,tiff,JPG,JPEG,PNG,GIF,BMP,TIF,TIFF}";
+
+	/**
+	 * 每个线程最多同时提交的任务数，超出后等待已提交的结果输出后再提交
+	 */
+	private static final int TASKS_PER_WORKER = 4;
+
+	/**
+	 * 输出格式
+	 */
+	public enum Format { CSV, JSONL }
+
+	/**
+	 * 输出顺序
+	 */
+	public enum Order {
+		/**
+		 * 按输入顺序
+		 */
+		INPUT,
+		/**
+		 * 按完成顺序
+		 */
+		COMPLETION
+	}
+
+	/**
+	 * 单张图片的解析结果
+	 */
+	public static class Result {
+
+		private final Path file;
+
+		private final String result;
+
+		/**
+		 * 耗时，单位毫秒
+		 */
+		private final double elapsed;
+
+		Result(Path file, String result, double elapsed) {
+			this.file = file;
+			this.result = result;
+			this.elapsed = elapsed;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+
+		public String getResult() {
+			return result;
+		}
+
+		public double getElapsed() {
+			return elapsed;
+		}
+	}
+
+	/**
+	 * 所有输入文件共用的解析流程
+	 */
+	private final CaptchaPipeline pipeline;
+
+	private final int workers;
+
+	private final Format format;
+
+	private final Order order;
+
+	/**
+	 * @param params 配置参数，格式与Bootstrap输入相同的键值对，忽略source
+	 * @param workers 并行线程数
+	 * @param format 输出格式
+	 * @param order 输出顺序
+	 */
+	public BatchParse(String[] params, int workers, Format format, Order order) {
+		if (workers < 1) throw new IllegalArgumentException("线程数必须大于0");
+		CaptchaConfig.Builder builder = new CaptchaConfig.Builder();
+		Bootstrap.configure(builder, params);
+		this.pipeline = builder.build().compile();
+		this.workers = workers;
+		this.format = format;
+		this.order = order;
+	}
+
+	/**
+	 * 解析输入的所有图片并输出结果，结束后输出吞吐量统计
+	 *
+	 * @param input 目录、通配符或列表文件
+	 * @param out 结果输出
+	 * @param summary 统计输出
+	 * @return 解析的图片数量
+	 */
+	public int run(String input, Writer out, PrintWriter summary) throws IOException {
+		List<Path> files = resolve(input);
+		PrintWriter writer = new PrintWriter(out);
+		if (format == Format.CSV) writer.println("file,result,elapsed");
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			/*
+			 * 已提交未输出的任务不超过window个，每输出一个结果再提交一个，输出后不再持有其Future。
+			 * 按输入顺序时依次等待队首，按完成顺序时从CompletionService中取
+			 */
+			CompletionService<Result> service = order == Order.COMPLETION
+					? new ExecutorCompletionService<Result>(executor) : null;
+			Deque<Future<Result>> pending = new ArrayDeque<>();
+			int window = workers * TASKS_PER_WORKER;
+			int submitted = 0;
+			for (int written = 0; written < files.size(); written++) {
+				while (submitted < files.size() && submitted - written < window) {
+					Future<Result> future = submit(executor, service, files.get(submitted++));
+					if (service == null) pending.add(future);
+				}
+				Future<Result> future = service == null ? pending.poll() : service.take();
+				write(writer, future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("批量解析被中断", e);
+		} catch (ExecutionException e) {
+			throw new IOException("批量解析失败", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			writer.flush();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		summary.println(String.format(Locale.ROOT, "summary:files=%d workers=%d elapsed=%.3fs throughput=%.2f/s",
+				files.size(), workers, seconds, seconds == 0 ? 0 : files.size() / seconds));
+		summary.flush();
+		return files.size();
+	}
+
+	/**
+	 * 解析输入并输出到标准输出
+	 */
+	public int run(String input) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		return run(input, out, new PrintWriter(System.out));
+	}
+
+	private Future<Result> submit(ExecutorService executor, CompletionService<Result> service, final Path file) {
+		return service == null ? executor.submit(() -> parse(file)) : service.submit(() -> parse(file));
+	}
+
+	private Result parse(Path file) {
+		long start = System.nanoTime();
+		String result;
+		try {
+			result = pipeline.parse(file);
+		} catch (IOException e) {
+			result = "无法读取资源" + e;
+		} catch (RuntimeException e) {
+			result = "解析失败" + e;
+		}
+		return new Result(file, result, (System.nanoTime() - start) / 1e6);
+	}
+
+	private void write(PrintWriter writer, Result result) {
+		String elapsed = String.format(Locale.ROOT, "%.3f", result.elapsed);
+		if (format == Format.CSV) {
+			writer.println(csv(result.file.toString()) + "," + csv(result.result) + "," + elapsed);
+		} else {
+			writer.println("{\"file\":" + json(result.file.toString()) + ",\"result\":"
+					+ json(result.result) + ",\"elapsed\":" + elapsed + "}");
+		}
+	}
+
+	/**
+	 * 解析输入
+	 *
+	 * <p>目录取其中的图片文件，含*?[{的视为通配符，其他文件视为列表文件</p>
+	 * @param input 输入
+	 * @return 按名称排序的文件列表，列表文件保持原有顺序
+	 */
+	static List<Path> resolve(String input) throws IOException {
+		List<Path> files = new ArrayList<>();
+		int wildcard = indexOfWildcard(input);
+		if (wildcard >= 0) {
+			/*
+			 * 通配符只作用于文件名，目录取通配符前最后一个分隔符之前的部分
+			 */
+			int separator = Math.max(input.lastIndexOf('/', wildcard), input.lastIndexOf('\\', wildcard));
+			Path dir = separator < 0 ? Paths.get(".") : Paths.get(input.substring(0, separator + 1));
+			PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + input.substring(separator + 1));
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path file : stream) {
+					if (Files.isRegularFile(file) && matcher.matches(file.getFileName())) files.add(file);
+				}
+			}
+			Collections.sort(files);
+		} else if (Files.isDirectory(Paths.get(input))) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(input), IMAGE_GLOB)) {
+				for (Path file : stream) {
+					if (Files.isRegularFile(file)) files.add(file);
+				}
+			}
+			Collections.sort(files);
+		} else {
+			for (String line : Files.readAllLines(Paths.get(input), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (!line.isEmpty()) files.add(Paths.get(line));
+			}
+		}
+		return files;
+	}
+
+	private static int indexOfWildcard(String input) {
+		for (int i = 0; i < input.length(); i++) {
+			char ch = input.charAt(i);
+			if (ch == '*' || ch == '?' || ch == '[' || ch == '{') return i;
+		}
+		return -1;
+	}
+
+	private static String csv(String value) {
+		if (!value.matches("(?s).*[,\"\r\n].*")) return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	static String json(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (ch == '"' || ch == '\\') sb.append('\\').append(ch);
+			else if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+			else sb.append(ch);
+		}
+		return sb.append('"').toString();
+	}
+}
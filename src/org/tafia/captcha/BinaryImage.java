@@ -0,0 +1,237 @@
+package org.tafia.captcha;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * 二值图片
+ *
+ * <p>每个像素占1位，按行打包到long数组中，置位表示前景色，未置位表示背景色。
+ * 第y行第x列的像素位于words[y*stride + (x>>>6)]的第(x&amp;63)位</p>
+ */
+public class BinaryImage {
+
+	/**
+	 * 前景色
+	 */
+	static final int FOREGROUND_COLOR = 0xFF << 24;
+
+	/**
+	 * 背景色
+	 */
+	static final int BACKGROUND_COLOR = 0xFFFFFFFF;
+
+	final int width;
+
+	final int height;
+
+	/**
+	 * 每行占用的long数量
+	 */
+	final int stride;
+
+	final long[] words;
+
+	/**
+	 * 创建一个全背景色的二值图片
+	 *
+	 * @param width 宽度
+	 * @param height 高度
+	 */
+	public BinaryImage(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.stride = (width + 63) >>> 6;
+		this.words = new long[stride * height];
+	}
+
+	/**
+	 * 由图片创建二值图片，颜色等于前景色的像素置位
+	 *
+	 * @param image 图片
+	 * @return 二值图片
+	 */
+	public static BinaryImage of(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BinaryImage binary = new BinaryImage(width, height);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int base = y * binary.stride;
+			for (int x = 0; x < width; x++) {
+				if (row[x] == FOREGROUND_COLOR) binary.words[base + (x >>> 6)] |= 1L << x;
+			}
+		}
+		return binary;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * 是否是前景色
+	 */
+	public boolean get(int x, int y) {
+		return (words[y * stride + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * 设为前景色
+	 */
+	public void set(int x, int y) {
+		words[y * stride + (x >>> 6)] |= 1L << x;
+	}
+
+	/**
+	 * 设为背景色
+	 */
+	public void clear(int x, int y) {
+		words[y * stride + (x >>> 6)] &= ~(1L << x);
+	}
+
+	/**
+	 * 前景色像素数量
+	 */
+	public int count() {
+		int count = 0;
+		for (long word : words) count += Long.bitCount(word);
+		return count;
+	}
+
+	/**
+	 * 第y行是否全为背景色
+	 */
+	public boolean isBlankRow(int y) {
+		int base = y * stride;
+		for (int i = 0; i < stride; i++) {
+			if (words[base + i] != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 取反色
+	 */
+	public void invert() {
+		long tail = tailMask();
+		for (int y = 0; y < height; y++) {
+			int base = y * stride;
+			for (int i = 0; i < stride; i++) words[base + i] = ~words[base + i];
+			words[base + stride - 1] &= tail;
+		}
+	}
+
+	/**
+	 * 截取矩形区域，返回新的二值图片
+	 *
+	 * @param x 左上角横坐标
+	 * @param y 左上角纵坐标
+	 * @param w 宽度
+	 * @param h 高度
+	 * @return 二值图片
+	 */
+	public BinaryImage crop(int x, int y, int w, int h) {
+		if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+			throw new IllegalArgumentException("区域超出图片范围");
+		}
+		BinaryImage sub = new BinaryImage(w, h);
+		int shift = x & 63;
+		long tail = sub.tailMask();
+		for (int j = 0; j < h; j++) {
+			int src = (y + j) * stride + (x >>> 6);
+			int dst = j * sub.stride;
+			int srcEnd = (y + j + 1) * stride;
+			for (int i = 0; i < sub.stride; i++) {
+				long word = words[src + i] >>> shift;
+				if (shift != 0 && src + i + 1 < srcEnd) word |= words[src + i + 1] << (64 - shift);
+				sub.words[dst + i] = word;
+			}
+			sub.words[dst + sub.stride - 1] &= tail;
+		}
+		return sub;
+	}
+
+	/**
+	 * 将第y行从x开始的length个像素按位或到target第ty行从tx开始的位置
+	 *
+	 * <p>每次移位复制最多64位，target对应的位应为背景色</p>
+	 */
+	void copyRow(int x, int y, int length, BinaryImage target, int tx, int ty) {
+		int src = y * stride;
+		int dst = ty * target.stride;
+		while (length > 0) {
+			int n = Math.min(length, 64 - (tx & 63));
+			int index = src + (x >>> 6);
+			int shift = x & 63;
+			long word = words[index] >>> shift;
+			if (shift != 0 && shift + n > 64) word |= words[index + 1] << (64 - shift);
+			if (n < 64) word &= (1L << n) - 1;
+			target.words[dst + (tx >>> 6)] |= word << tx;
+			x += n;
+			tx += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * 第y行[from, to)列设为前景色
+	 */
+	void fillRow(int from, int to, int y) {
+		int base = y * stride;
+		while (from < to) {
+			int n = Math.min(to - from, 64 - (from & 63));
+			long mask = n == 64 ? -1L : (1L << n) - 1;
+			words[base + (from >>> 6)] |= mask << from;
+			from += n;
+		}
+	}
+
+	public BinaryImage copy() {
+		BinaryImage copy = new BinaryImage(width, height);
+		System.arraycopy(words, 0, copy.words, 0, words.length);
+		return copy;
+	}
+
+	/**
+	 * 转换为TYPE_INT_RGB图片，前景色为黑色，背景色为白色
+	 *
+	 * @return 图片
+	 */
+	public BufferedImage toImage() {
+		return toImage(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+	}
+
+	/**
+	 * 写入已有的图片
+	 *
+	 * @param image 大小相同、扫描行长度等于宽度的TYPE_INT_RGB图片
+	 * @return image
+	 */
+	BufferedImage toImage(BufferedImage image) {
+		int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < height; y++) {
+			int base = y * stride;
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				data[offset + x] = (words[base + (x >>> 6)] & (1L << x)) != 0 ?
+						FOREGROUND_COLOR : BACKGROUND_COLOR;
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * 每行最后一个long的有效位掩码
+	 */
+	long tailMask() {
+		int rest = width & 63;
+		return rest == 0 ? -1L : (1L << rest) - 1;
+	}
+
+}
@@ -1,5 +1,11 @@
 package org.tafia.captcha;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 import org.tafia.captcha.CaptchaParse.CaptchaConfig;
@@ -19,17 +25,48 @@ public class Bootstrap {
 	 * 程序入口
 	 *
 	 * 在参数集source=partition:\pathname border=0 threshold=-1 noise=-1 block=-1
-	 * chars=0 chinese=false italic=false isometry=false semantic=false save=false type=filetype中选择一个或多个输入
+	 * chars=0 chinese=false italic=false isometry=false semantic=false save=false type=filetype luma=false segment=false
+	 * parallel=1048576中选择一个或多个输入
+	 * 
+	 * <p>输入batch=目录、通配符或列表文件时批量解析，可选workers=线程数 format=csv|jsonl
+	 * order=input|completion output=结果文件</p>
+	 * 
+	 * <p>输入tune=已标注图片的目录、通配符或列表文件时调优配置参数，可选accuracy=目标正确率 samples=随机组合数
+	 * seed=随机种子 workers=线程数，border、italic、threshold、noise、block、isometry可以是逗号分隔的多个候选值</p>
 	 * @param args 命令行参数
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		System.out.println(instruction());
 		Scanner scan = new Scanner(System.in);
 		System.out.print("custom:");
 		String input = scan.nextLine();
 		scan.close();
 		String[] params = input.split(" |=");
+		String batch = value(params, "batch");
+		if (batch != null) {
+			batch(params, batch);
+			return;
+		}
+		String tune = value(params, "tune");
+		if (tune != null) {
+			tune(params, tune);
+			return;
+		}
 		CaptchaConfig.Builder builder = new CaptchaConfig.Builder();
+		configure(builder, params);
+		CaptchaConfig config = builder.build();
+		CaptchaParse parser = new CaptchaParse(config);
+		System.out.println("process:parsing...");
+		System.out.println("result:"+parser.parse());
+	}
+	
+	/**
+	 * 按键值对参数设置配置
+	 * 
+	 * @param builder 配置建造者
+	 * @param params 依次排列的键和值
+	 */
+	static void configure(CaptchaConfig.Builder builder, String[] params) {
 		for (int i = 0; i < params.length - 1; i += 2) {
 			String key = params[i];
 			String value = params[i+1];
@@ -57,12 +94,70 @@ public class Bootstrap {
 				if (Boolean.valueOf(value)) builder.save();
 			} else if ("type".equals(key)) {
 				builder.type(value);
+			} else if ("luma".equals(key)) {
+				if (Boolean.valueOf(value)) builder.luma();
+			} else if ("segment".equals(key)) {
+				if (Boolean.valueOf(value)) builder.segment();
+			} else if ("parallel".equals(key)) {
+				builder.parallel(Integer.valueOf(value));
 			}
 		}
-		CaptchaConfig config = builder.build();
-		CaptchaParse parser = new CaptchaParse(config);
+	}
+	
+	/**
+	 * 批量解析
+	 * 
+	 * @param params 参数
+	 * @param input 目录、通配符或列表文件
+	 */
+	private static void batch(String[] params, String input) throws IOException {
+		String workers = value(params, "workers");
+		String format = value(params, "format");
+		String order = value(params, "order");
+		String output = value(params, "output");
+		BatchParse batch = new BatchParse(params,
+				workers == null ? Runtime.getRuntime().availableProcessors() : Integer.valueOf(workers),
+				format == null ? BatchParse.Format.CSV : BatchParse.Format.valueOf(format.toUpperCase()),
+				order == null ? BatchParse.Order.INPUT : BatchParse.Order.valueOf(order.toUpperCase()));
 		System.out.println("process:parsing...");
-		System.out.println("result:"+parser.parse());
+		if (output == null) {
+			batch.run(input);
+			return;
+		}
+		try (Writer out = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+			batch.run(input, out, new PrintWriter(System.out));
+		}
+	}
+	
+	/**
+	 * 调优配置参数
+	 * 
+	 * @param params 参数
+	 * @param input 已标注图片的目录、通配符或列表文件
+	 */
+	private static void tune(String[] params, String input) throws IOException {
+		String workers = value(params, "workers");
+		String accuracy = value(params, "accuracy");
+		String samples = value(params, "samples");
+		String seed = value(params, "seed");
+		ConfigTuner tuner = new ConfigTuner(params,
+				workers == null ? Runtime.getRuntime().availableProcessors() : Integer.valueOf(workers));
+		System.out.println("process:tuning...");
+		tuner.run(input, accuracy == null ? 1 : Double.valueOf(accuracy),
+				samples == null ? 0 : Integer.valueOf(samples),
+				seed == null ? 0 : Long.valueOf(seed), new PrintWriter(System.out));
+	}
+	
+	/**
+	 * 查找参数值
+	 * 
+	 * @return 参数值，不存在时返回null
+	 */
+	private static String value(String[] params, String key) {
+		for (int i = 0; i < params.length - 1; i += 2) {
+			if (key.equals(params[i])) return params[i+1];
+		}
+		return null;
 	}
 	
 	/**
@@ -73,8 +168,8 @@ public class Bootstrap {
 	private static String instruction() {
 		return String.format("default:source=%s border=%d threshold=%d "
 				+ "noise=%d block=%d chars=%d chinese=%b italic=%b "
-				+ "isometry=%b semantic=%b save=%b type=%s",
+				+ "isometry=%b semantic=%b save=%b type=%s luma=%b segment=%b parallel=%d",
 				"partition:\\pathname", 0, -1, -1, -1, 0, 
-				false, false, false, false, false, "filetype");
+				false, false, false, false, false, "filetype", false, false, RowBands.DEFAULT_PIXELS);
 	}
 }
@@ -0,0 +1,69 @@
+package org.tafia.captcha;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * 线程内复用的图片缓冲
+ *
+ * <p>解析流程在一个线程内依次执行各阶段，工作图片在两块像素缓冲之间交替，
+ * 灰度值写入一块字节缓冲。缓冲按见过的最大图片扩容后保留，
+ * 之后不超过该大小的图片不再分配。缓冲中的图片只在同一线程下一次使用同一缓冲前有效，
+ * 不能交给其它线程或返回给调用者</p>
+ */
+final class BufferPool {
+
+	private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+
+	private static final ThreadLocal<BufferPool> POOLS = new ThreadLocal<BufferPool>() {
+		@Override
+		protected BufferPool initialValue() {
+			return new BufferPool();
+		}
+	};
+
+	private final int[][] pixels = {new int[0], new int[0]};
+
+	private byte[] grays = new byte[0];
+
+	private BufferPool() {}
+
+	/**
+	 * 当前线程的缓冲
+	 */
+	static BufferPool get() {
+		return POOLS.get();
+	}
+
+	/**
+	 * 使用一块像素缓冲的TYPE_INT_RGB图片
+	 *
+	 * <p>扫描行长度等于宽度，像素内容不确定</p>
+	 * @param slot 缓冲编号，0或1
+	 * @param width 宽度
+	 * @param height 高度
+	 * @return 图片
+	 */
+	BufferedImage image(int slot, int width, int height) {
+		int size = width * height;
+		if (pixels[slot].length < size) pixels[slot] = new int[size];
+		DataBufferInt buffer = new DataBufferInt(pixels[slot], size);
+		WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width,
+				RGB.getMasks(), new Point());
+		return new BufferedImage(RGB, raster, false, null);
+	}
+
+	/**
+	 * 灰度缓冲，内容不确定
+	 *
+	 * @param size 最小长度
+	 */
+	byte[] grays(int size) {
+		if (grays.length < size) grays = new byte[size];
+		return grays;
+	}
+}
@@ -1,10 +1,9 @@
 package org.tafia.captcha;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-
-import javax.imageio.ImageIO;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 验证码解析调度类
@@ -17,59 +16,60 @@ public class CaptchaParse {
 
 	private CaptchaConfig config;
 	
+	private CaptchaPipeline pipeline;
+	
 	public CaptchaParse(CaptchaConfig config) {
 		this.config = config;
+		this.pipeline = config.compile();
 	}
 	
 	public String parse() {
-		String result = "";
 		try {
-			BufferedImage image = ImageLoader.load(config.source);
-			ImageFilter filter = new ImageFilter(image);
-			if (config.border != 0) {
-				image = filter.clearBorder(config.border).render();
-				filter = new ImageFilter(image);
-			}
-			if (config.italic) {
-				image = filter.reitalic().render();
-				filter = new ImageFilter(image);
-			}
-			if (config.threshold == 0) {
-				filter.graying().binaryzation();
-			} else if (config.threshold > 0){
-				filter.graying().binaryzation(config.threshold);
-			}
-			if (config.noise == 0) {
-				filter.clearNoise();
-			} else if(config.noise > 0) {
-				filter.clearNoise(config.noise);
-			}
-			if (config.block == 0) {
-				filter.clearBlock();
-			} else if(config.block > 0){
-				filter.clearBlock(config.block);
-			}
-			if (config.isometry) {
-				ImageInciser inciser = new ImageInciser(filter.render());
-				image = inciser.fixedIncise(config.chars);
-				filter = new ImageFilter(image);
-				filter.clearBlock();
-			}
-			if (config.save) {
-				StringBuilder sb = new StringBuilder(config.source);
-				int index = sb.lastIndexOf(".");
-				if (config.type == null) config.type = sb.substring(index+1);
-				sb.insert(index, ".parsed");
-				ImageIO.write(filter.render(), config.type, new File(sb.toString()));
-			}
-			result = ImageParser.origin(filter.render(), config.chinese);
-			if (config.semantic) {
-				result = ImageParser.semantic(result);
-			}
+			return pipeline.parse(Paths.get(config.source));
 		} catch (IOException e) {
-			result =  "无法读取资源"+e;
+			return "无法读取资源"+e;
 		}
-		return result;
+	}
+	
+	/**
+	 * 解析已加载的图片
+	 * 
+	 * <p>不保存处理后的图片</p>
+	 * @param image 验证码图片
+	 * @return 解析结果
+	 */
+	public String parse(BufferedImage image) {
+		return pipeline.parse(image);
+	}
+	
+	/**
+	 * 在默认线程池中异步解析资源路径的图片
+	 * 
+	 * <p>结果与parse()相同，队列已满被拒绝时以RejectedExecutionException异常完成</p>
+	 * @return 解析结果
+	 */
+	public CompletableFuture<String> parseAsync() {
+		return ParseExecutor.getDefault().submit(this::parse);
+	}
+	
+	/**
+	 * 在默认线程池中异步解析已加载的图片
+	 * 
+	 * @param image 验证码图片
+	 * @return 解析结果
+	 */
+	public CompletableFuture<String> parseAsync(BufferedImage image) {
+		return pipeline.parseAsync(image);
+	}
+	
+	/**
+	 * 识别前的图片处理
+	 * 
+	 * @param image 验证码图片
+	 * @return 处理后用于识别的图片
+	 */
+	public BufferedImage process(BufferedImage image) {
+		return pipeline.process(image);
 	}
 	
 	/**
@@ -130,6 +130,101 @@ public class CaptchaParse {
 		 * 图片格式
 		 */
 		private String type;
+		/**
+		 * 识别结果缓存
+		 */
+		private ResultCache cache;
+		/**
+		 * 二值化时JPEG只解码亮度
+		 */
+		private boolean luma;
+		/**
+		 * 是否逐字识别
+		 */
+		private boolean segment;
+		/**
+		 * 字符模板识别，不为null时代替Tesseract
+		 */
+		private TemplateRecognizer recognizer;
+		/**
+		 * 按行分块并行处理的像素数阈值
+		 */
+		private int parallel;
+		
+		public String getSource() {
+			return source;
+		}
+		
+		public int getBorder() {
+			return border;
+		}
+		
+		public int getThreshold() {
+			return threshold;
+		}
+		
+		public int getNoise() {
+			return noise;
+		}
+		
+		public int getBlock() {
+			return block;
+		}
+		
+		public int getChars() {
+			return chars;
+		}
+		
+		public boolean isChinese() {
+			return chinese;
+		}
+		
+		public boolean isItalic() {
+			return italic;
+		}
+		
+		public boolean isIsometry() {
+			return isometry;
+		}
+		
+		public boolean isSemantic() {
+			return semantic;
+		}
+		
+		public boolean isSave() {
+			return save;
+		}
+		
+		public String getType() {
+			return type;
+		}
+		
+		public ResultCache getCache() {
+			return cache;
+		}
+		
+		public boolean isLuma() {
+			return luma;
+		}
+		
+		public boolean isSegment() {
+			return segment;
+		}
+		
+		public TemplateRecognizer getRecognizer() {
+			return recognizer;
+		}
+		
+		public int getParallel() {
+			return parallel;
+		}
+		
+		/**
+		 * 编译为不可变的解析流程
+		 */
+		public CaptchaPipeline compile() {
+			return CaptchaPipeline.compile(this);
+		}
 		/**
 		 * 验证码解析配置建造者
 		 * 
@@ -145,6 +240,7 @@ public class CaptchaParse {
 				threshold(-1);
 				noise(-1);
 				block(-1);
+				parallel(RowBands.DEFAULT_PIXELS);
 			}
 			/**
 			 * 资源路径
@@ -231,6 +327,48 @@ public class CaptchaParse {
 				return this;
 			}
 			
+			/**
+			 * 识别结果缓存，只对二值化后的图片生效，识别方式不同的配置可以共用
+			 */
+			public Builder cache(ResultCache cache) {
+				config.cache = cache;
+				return this;
+			}
+			
+			/**
+			 * 二值化时JPEG只解码亮度分量作为灰度，不解码颜色，
+			 * 灰度与解码为RGB后再灰度化的结果略有差别，只对从文件或数据流加载的图片生效
+			 */
+			public Builder luma() {
+				config.luma = true;
+				return this;
+			}
+			
+			/**
+			 * 二值化后按字符切割，逐字并行识别，字符数不为0时按字符数切开粘连的字符
+			 */
+			public Builder segment() {
+				config.segment = true;
+				return this;
+			}
+			
+			/**
+			 * 使用字符模板识别代替Tesseract，二值化后按字符切割逐个匹配
+			 */
+			public Builder recognizer(TemplateRecognizer recognizer) {
+				config.recognizer = recognizer;
+				return this;
+			}
+			
+			/**
+			 * 图片像素数不少于pixels时，灰度化、二值化和去噪等处理按行分块并行，小于等于0表示不并行，
+			 * 默认为1048576。并行去噪按处理前的邻域判断，结果可能与串行略有不同
+			 */
+			public Builder parallel(int pixels) {
+				config.parallel = pixels;
+				return this;
+			}
+			
 			public CaptchaConfig build() {
 				return config;
 			}
@@ -0,0 +1,341 @@
+package org.tafia.captcha;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.imageio.ImageIO;
+
+import org.tafia.captcha.CaptchaParse.CaptchaConfig;
+import org.tafia.captcha.ParseMetrics.Stage;
+
+/**
+ * 编译后的验证码解析流程
+ * 
+ * <p>由CaptchaConfig编译而成，编译时复制配置并确定要执行的处理步骤，之后不可变，
+ * 可以在多个线程中共享并解析任意数量的图片。资源路径不属于流程，由每次调用传入</p>
+ * 
+ */
+public final class CaptchaPipeline {
+
+	/**
+	 * 处理步骤
+	 */
+	private interface Step {
+		ImageFilter apply(ImageFilter filter);
+	}
+
+	private final Stage[] stages;
+
+	private final Step[] steps;
+
+	private final boolean chinese;
+
+	private final String language;
+
+	private final boolean semantic;
+
+	private final boolean binaryzation;
+
+	/**
+	 * 加载时JPEG只解码亮度
+	 */
+	private final boolean luma;
+
+	/**
+	 * 逐字识别
+	 */
+	private final boolean segment;
+
+	/**
+	 * 字符数，0表示不限定
+	 */
+	private final int chars;
+
+	private final TemplateRecognizer recognizer;
+
+	private final boolean save;
+
+	private final String type;
+
+	private final ResultCache cache;
+
+	/**
+	 * 缓存中的识别方式：语言、模板识别器（按对象本身比较）、是否逐字识别和字符数，
+	 * 共用缓存的配置识别方式不同时不会取到彼此的结果
+	 */
+	private final Object scope;
+
+	/**
+	 * 按行分块并行处理的像素数阈值
+	 */
+	private final int parallel;
+
+	CaptchaPipeline(CaptchaConfig config) {
+		final int border = config.getBorder();
+		final int threshold = config.getThreshold();
+		final int noise = config.getNoise();
+		final int block = config.getBlock();
+		final int chars = config.getChars();
+		List<Stage> stages = new ArrayList<>();
+		List<Step> steps = new ArrayList<>();
+		if (border != 0) {
+			stages.add(Stage.BORDER);
+			steps.add(filter -> filter.clearBorder(border));
+		}
+		if (config.isItalic()) {
+			stages.add(Stage.ITALIC);
+			steps.add(filter -> filter.reitalic());
+		}
+		if (threshold == 0) {
+			stages.add(Stage.BINARYZATION);
+			steps.add(filter -> filter.grayBinaryzation());
+		} else if (threshold > 0) {
+			stages.add(Stage.BINARYZATION);
+			steps.add(filter -> filter.grayBinaryzation(threshold));
+		}
+		if (noise == 0) {
+			stages.add(Stage.NOISE);
+			steps.add(filter -> filter.clearNoise());
+		} else if (noise > 0) {
+			stages.add(Stage.NOISE);
+			steps.add(filter -> filter.clearNoise(noise));
+		}
+		if (block == 0) {
+			stages.add(Stage.BLOCK);
+			steps.add(filter -> filter.clearBlock());
+		} else if (block > 0) {
+			stages.add(Stage.BLOCK);
+			steps.add(filter -> filter.clearBlock(block));
+		}
+		if (config.isIsometry() && threshold >= 0) {
+			stages.add(Stage.INCISE);
+			steps.add(filter -> {
+				ImageInciser inciser = new ImageInciser(filter.renderBinary());
+				return filter.replace(inciser.fixedInciseBinary(chars)).clearBlock();
+			});
+		} else if (config.isIsometry()) {
+			/*
+			 * 未二值化时renderBinary只保留前景色的像素，按原图切割以保留颜色
+			 */
+			final int pixels = config.getParallel();
+			stages.add(Stage.INCISE);
+			steps.add(filter -> {
+				ImageInciser inciser = new ImageInciser(filter.render());
+				return new ImageFilter(inciser.fixedIncise(chars)).parallel(pixels).clearBlock();
+			});
+		}
+		this.stages = stages.toArray(new Stage[stages.size()]);
+		this.steps = steps.toArray(new Step[steps.size()]);
+		this.chinese = config.isChinese();
+		this.language = ImageParser.language(chinese);
+		this.semantic = config.isSemantic();
+		this.binaryzation = threshold >= 0;
+		this.luma = config.isLuma() && binaryzation;
+		this.segment = config.isSegment() && binaryzation;
+		this.chars = chars;
+		this.recognizer = binaryzation ? config.getRecognizer() : null;
+		this.save = config.isSave();
+		this.type = config.getType();
+		this.cache = config.getCache();
+		this.scope = Arrays.asList(language, recognizer, segment, chars);
+		this.parallel = config.getParallel();
+	}
+
+	/**
+	 * 编译配置
+	 * 
+	 * @param config 配置，编译后对配置的修改不影响流程
+	 * @return 解析流程
+	 */
+	public static CaptchaPipeline compile(CaptchaConfig config) {
+		return new CaptchaPipeline(config);
+	}
+
+	/**
+	 * 解析图片文件，配置了保存时处理后的图片保存在同目录下
+	 * 
+	 * @param path 图片路径
+	 * @return 解析结果
+	 * @throws IOException 读取图片或保存处理后的图片失败
+	 */
+	public String parse(Path path) throws IOException {
+		long start = ParseMetrics.start();
+		BufferedImage image = luma ? ImageLoader.loadGray(path) : ImageLoader.load(path);
+		ParseMetrics.record(Stage.LOAD, start);
+		if (image == null) throw new IOException("无法识别的图片格式" + path);
+		return parse(image, path);
+	}
+
+	/**
+	 * 解析图片数据流，不关闭数据流
+	 * 
+	 * @param in 图片数据流
+	 * @return 解析结果
+	 * @throws IOException 读取图片失败
+	 */
+	public String parse(InputStream in) throws IOException {
+		long start = ParseMetrics.start();
+		BufferedImage image = luma ? ImageLoader.loadGray(in) : ImageLoader.load(in);
+		ParseMetrics.record(Stage.LOAD, start);
+		if (image == null) throw new IOException("无法识别的图片格式");
+		return parse(image, null);
+	}
+
+	/**
+	 * 解析已加载的图片，不保存处理后的图片
+	 * 
+	 * @param image 验证码图片
+	 * @return 解析结果
+	 */
+	public String parse(BufferedImage image) {
+		try {
+			return parse(image, null);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 在默认线程池中异步解析图片文件
+	 * 
+	 * @param path 图片路径
+	 * @return 解析结果，读取失败时以IOException异常完成，队列已满被拒绝时以RejectedExecutionException异常完成
+	 */
+	public CompletableFuture<String> parseAsync(Path path) {
+		return ParseExecutor.getDefault().parse(this, path);
+	}
+
+	/**
+	 * 在默认线程池中异步解析已加载的图片，不保存处理后的图片
+	 * 
+	 * @param image 验证码图片
+	 * @return 解析结果，队列已满被拒绝时以RejectedExecutionException异常完成
+	 */
+	public CompletableFuture<String> parseAsync(BufferedImage image) {
+		return ParseExecutor.getDefault().parse(this, image);
+	}
+
+	/**
+	 * 识别前的图片处理，不保存处理后的图片
+	 * 
+	 * @param image 验证码图片
+	 * @return 处理后用于识别的图片
+	 */
+	public BufferedImage process(BufferedImage image) {
+		try {
+			return process(image, null);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	String parse(BufferedImage image, Path source) throws IOException {
+		long total = ParseMetrics.start();
+		String result = result(filter(image, source));
+		ParseMetrics.record(Stage.TOTAL, total);
+		return result;
+	}
+
+	/**
+	 * 识别处理后的图片，配置了语义分析时返回分析结果
+	 */
+	String result(ImageFilter filter) {
+		long start = ParseMetrics.start();
+		String result = recognize(filter);
+		ParseMetrics.record(Stage.OCR, start);
+		if (semantic) {
+			start = ParseMetrics.start();
+			result = ImageParser.semantic(result);
+			ParseMetrics.record(Stage.SEMANTIC, start);
+		}
+		return result;
+	}
+
+	/**
+	 * 只执行某一阶段的处理步骤，用于逐段处理并复用中间结果
+	 * 
+	 * @param stage 阶段
+	 * @param filter 上一阶段的结果，原地修改
+	 * @return 处理后的结果，流程不含该阶段时原样返回
+	 */
+	ImageFilter apply(Stage stage, ImageFilter filter) {
+		for (int i = 0; i < stages.length; i++) {
+			if (stages[i] == stage) return steps[i].apply(filter);
+		}
+		return filter;
+	}
+
+	/**
+	 * 处理图片
+	 * 
+	 * @param image 验证码图片
+	 * @param source 图片路径，不为null且配置了保存时保存处理后的图片
+	 */
+	BufferedImage process(BufferedImage image, Path source) throws IOException {
+		return filter(image, source).render();
+	}
+
+	/**
+	 * 在当前线程的缓冲中依次执行处理步骤，各步骤原地修改，不复制整张图片
+	 */
+	private ImageFilter filter(BufferedImage image, Path source) throws IOException {
+		ImageFilter filter = ImageFilter.pooled(image).parallel(parallel);
+		for (int i = 0; i < steps.length; i++) {
+			long start = ParseMetrics.start();
+			filter = steps[i].apply(filter);
+			ParseMetrics.record(stages[i], start);
+		}
+		if (save && source != null) {
+			long start = ParseMetrics.start();
+			String name = source.getFileName().toString();
+			int index = name.lastIndexOf('.');
+			if (index < 0) index = name.length();
+			String format = type != null ? type : name.substring(Math.min(index + 1, name.length()));
+			Path target = source.resolveSibling(name.substring(0, index) + ".parsed" + name.substring(index));
+			ImageIO.write(filter.renderPooled(), format, target.toFile());
+			ParseMetrics.record(Stage.SAVE, start);
+		}
+		return filter;
+	}
+
+	/**
+	 * 识别处理后的图片，配置了缓存且已二值化时先查找缓存
+	 */
+	private String recognize(ImageFilter filter) {
+		if (cache == null || !binaryzation) {
+			return ocr(filter);
+		}
+		BinaryImage binary = filter.renderBinary();
+		String result = cache.get(binary, scope);
+		if (result != null) return result;
+		result = ocr(filter);
+		if (!ImageParser.FAILURE.equals(result)) cache.put(binary, scope, result);
+		return result;
+	}
+
+	/**
+	 * 识别整张图片，配置了模板识别时按字符切割后匹配模板，
+	 * 配置了逐字识别且能切割出多个字符时逐字识别
+	 */
+	private String ocr(ImageFilter filter) {
+		if (recognizer != null) {
+			long start = ParseMetrics.start();
+			List<BinaryImage> glyphs = new ImageInciser(filter.renderBinary()).segmentBinary(chars);
+			ParseMetrics.record(Stage.SEGMENT, start);
+			return recognizer.recognize(glyphs);
+		}
+		if (segment) {
+			long start = ParseMetrics.start();
+			List<BufferedImage> glyphs = new ImageInciser(filter.renderBinary()).segment(chars);
+			ParseMetrics.record(Stage.SEGMENT, start);
+			if (glyphs.size() > 1) return ImageParser.origin(glyphs, chinese);
+		}
+		return ImageParser.origin(filter.renderPooled(), chinese);
+	}
+}
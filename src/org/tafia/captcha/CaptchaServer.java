@@ -0,0 +1,300 @@
+package org.tafia.captcha;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.tafia.captcha.CaptchaParse.CaptchaConfig;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * 验证码识别HTTP服务
+ *
+ * <p>POST /parse，请求体为图片数据，CaptchaConfig的参数以查询参数传入，
+ * 例如/parse?threshold=0&amp;noise=0&amp;semantic=true，返回JSON格式的结果，请求体超过上限时返回413。
+ * 请求在虚拟线程中接收和响应（运行时不支持时使用普通线程），图片解码和识别在固定数量的平台线程中进行，
+ * 线程缓冲和图片读取器因此可以在请求间复用；同时进行的识别数量即平台线程数</p>
+ */
+public class CaptchaServer {
+
+	/**
+	 * 等待识别许可的最长时间，超时返回503
+	 */
+	private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * 默认的请求体字节数上限
+	 */
+	private static final int DEFAULT_MAX_BODY = 4 << 20;
+
+	/**
+	 * 缓存的解析流程数量上限，超出后新的查询参数每次重新编译
+	 */
+	private static final int MAX_PIPELINES = 256;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	/**
+	 * 解码和识别的线程池
+	 */
+	private final ParseExecutor parser;
+
+	/**
+	 * 请求体字节数上限
+	 */
+	private final int maxBody;
+
+	/**
+	 * 按查询参数缓存编译后的解析流程
+	 */
+	private final Map<String, CaptchaPipeline> pipelines = new ConcurrentHashMap<>();
+
+	/**
+	 * 创建识别服务，请求体上限为4MB
+	 *
+	 * @param port 端口
+	 * @param concurrency 同时进行的识别数量上限
+	 */
+	public CaptchaServer(int port, int concurrency) throws IOException {
+		this(port, concurrency, DEFAULT_MAX_BODY);
+	}
+
+	/**
+	 * 创建识别服务
+	 *
+	 * @param port 端口
+	 * @param concurrency 同时进行的识别数量上限
+	 * @param maxBody 请求体字节数上限
+	 */
+	public CaptchaServer(int port, int concurrency, int maxBody) throws IOException {
+		if (concurrency < 1) throw new IllegalArgumentException("并发数必须大于0");
+		if (maxBody < 1) throw new IllegalArgumentException("请求体上限必须大于0");
+		this.parser = new ParseExecutor(concurrency, concurrency * 4, ParseExecutor.Admission.WAIT,
+				ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		this.maxBody = maxBody;
+		this.executor = requestExecutor();
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.createContext("/parse", new ParseHandler());
+		this.server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * 停止服务
+	 *
+	 * @param delay 等待进行中请求的最长秒数
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		executor.shutdown();
+		parser.shutdown();
+	}
+
+	/**
+	 * 服务入口，启动前预热识别引擎，首批请求不再等待Tesseract初始化
+	 *
+	 * @param args [端口, 并发数]，默认8080和处理器数量
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		try {
+			ImageParser.warmUp(concurrency);
+		} catch (TesseractException e) {
+			System.out.println("server:warm up failed, " + e.getMessage());
+		}
+		CaptchaServer server = new CaptchaServer(port, concurrency);
+		server.start();
+		System.out.println("server:listening on " + port + ", concurrency=" + concurrency);
+	}
+
+	/**
+	 * 每个请求一个虚拟线程，运行时不支持虚拟线程时使用缓存线程池
+	 */
+	private static ExecutorService requestExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private class ParseHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+					respond(exchange, 405, "{\"error\":\"只支持POST\"}");
+					return;
+				}
+				CaptchaPipeline pipeline;
+				try {
+					pipeline = pipeline(exchange.getRequestURI().getRawQuery());
+				} catch (IllegalArgumentException e) {
+					respond(exchange, 400, "{\"error\":" + BatchParse.json("参数错误" + e.getMessage()) + "}");
+					return;
+				}
+				byte[] body = body(exchange);
+				if (body == null) {
+					respond(exchange, 413, "{\"error\":\"请求体超过" + maxBody + "字节\"}");
+					return;
+				}
+				final CaptchaPipeline compiled = pipeline;
+				Parsed parsed;
+				try {
+					parsed = parser.submit(() -> parse(compiled, body)).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RejectedExecutionException) {
+						respond(exchange, 503, "{\"error\":\"服务繁忙\"}");
+						return;
+					}
+					throw new IllegalStateException(e.getCause());
+				}
+				if (parsed == null) {
+					respond(exchange, 400, "{\"error\":\"无法读取图片\"}");
+					return;
+				}
+				respond(exchange, 200, "{\"result\":" + BatchParse.json(parsed.result) + ",\"elapsed\":"
+						+ String.format(Locale.ROOT, "%.3f", parsed.elapsed) + "}");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				respond(exchange, 503, "{\"error\":\"服务停止\"}");
+			} catch (RuntimeException e) {
+				respond(exchange, 500, "{\"error\":" + BatchParse.json(String.valueOf(e)) + "}");
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * 识别结果
+	 */
+	private static class Parsed {
+
+		private final String result;
+
+		/**
+		 * 识别耗时，单位毫秒，不含解码
+		 */
+		private final double elapsed;
+
+		Parsed(String result, double elapsed) {
+			this.result = result;
+			this.elapsed = elapsed;
+		}
+	}
+
+	/**
+	 * 在解析线程池中解码并识别
+	 *
+	 * @return 识别结果，无法读取图片时返回null
+	 */
+	private static Parsed parse(CaptchaPipeline pipeline, byte[] body) {
+		BufferedImage image;
+		try {
+			image = ImageLoader.load(new ByteArrayInputStream(body));
+		} catch (IOException e) {
+			image = null;
+		}
+		if (image == null) return null;
+		long start = System.nanoTime();
+		String result = pipeline.parse(image);
+		return new Parsed(result, (System.nanoTime() - start) / 1e6);
+	}
+
+	/**
+	 * 读取请求体
+	 *
+	 * <p>Content-Length超过上限时不读取，未声明长度时读到超过上限为止</p>
+	 * @return 请求体，超过上限时返回null
+	 */
+	private byte[] body(HttpExchange exchange) throws IOException {
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (length != null && length.trim().matches("\\d+")) {
+			length = length.trim();
+			if (length.length() > 18 || Long.parseLong(length) > maxBody) return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		InputStream in = exchange.getRequestBody();
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			if (out.size() + n > maxBody) return null;
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * 查询参数对应的解析流程
+	 * 
+	 * <p>资源路径不从请求中读取，解析流程不会读写服务器上的文件</p>
+	 */
+	private CaptchaPipeline pipeline(String query) throws UnsupportedEncodingException {
+		String key = query == null ? "" : query;
+		CaptchaPipeline pipeline = pipelines.get(key);
+		if (pipeline != null) return pipeline;
+		CaptchaConfig.Builder builder = new CaptchaConfig.Builder();
+		Bootstrap.configure(builder, params(query));
+		pipeline = builder.build().compile();
+		if (pipelines.size() < MAX_PIPELINES) pipelines.put(key, pipeline);
+		return pipeline;
+	}
+
+	/**
+	 * 将查询参数转换为依次排列的键和值
+	 */
+	private static String[] params(String query) throws UnsupportedEncodingException {
+		List<String> params = new ArrayList<>();
+		if (query == null) return new String[0];
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) continue;
+			int index = pair.indexOf('=');
+			String key = index < 0 ? pair : pair.substring(0, index);
+			String value = index < 0 ? "true" : pair.substring(index + 1);
+			params.add(URLDecoder.decode(key, "UTF-8"));
+			params.add(URLDecoder.decode(value, "UTF-8"));
+		}
+		return params.toArray(new String[params.size()]);
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
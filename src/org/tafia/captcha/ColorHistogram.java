@@ -0,0 +1,158 @@
+package org.tafia.captcha;
+
+import java.util.Arrays;
+
+/**
+ * 颜色直方图
+ *
+ * <p>开放寻址的int到int散列表，线性探测，装载因子不超过一半，计数不装箱。
+ * 可标记出现次数最多的若干颜色，之后按颜色查询是否被标记。
+ * 出现次数相同的颜色按颜色值从小到大排序，结果与统计顺序无关</p>
+ */
+final class ColorHistogram {
+
+	private int[] colors;
+
+	/**
+	 * 出现次数，0表示空位
+	 */
+	private int[] counts;
+
+	/**
+	 * 被标记的颜色，与colors下标对应
+	 */
+	private boolean[] kept;
+
+	private int size;
+
+	ColorHistogram() {
+		colors = new int[256];
+		counts = new int[256];
+	}
+
+	/**
+	 * 颜色出现一次
+	 */
+	void add(int color) {
+		add(color, 1);
+	}
+
+	void add(int color, int count) {
+		int slot = slot(color);
+		if (counts[slot] == 0) {
+			colors[slot] = color;
+			if (++size * 2 > colors.length) {
+				counts[slot] = count;
+				grow();
+				return;
+			}
+		}
+		counts[slot] += count;
+	}
+
+	/**
+	 * 加上另一个直方图的计数
+	 *
+	 * @return 当前直方图
+	 */
+	ColorHistogram merge(ColorHistogram other) {
+		for (int i = 0; i < other.colors.length; i++) {
+			if (other.counts[i] != 0) add(other.colors[i], other.counts[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * 不同颜色的数量
+	 */
+	int size() {
+		return size;
+	}
+
+	int count(int color) {
+		return counts[slot(color)];
+	}
+
+	/**
+	 * 出现次数最多的颜色
+	 *
+	 * @return 颜色，没有颜色时返回0
+	 */
+	int mostFrequent() {
+		int color = 0;
+		int max = 0;
+		for (int i = 0; i < colors.length; i++) {
+			int count = counts[i];
+			if (count > max || count == max && count != 0 && colors[i] < color) {
+				max = count;
+				color = colors[i];
+			}
+		}
+		return color;
+	}
+
+	/**
+	 * 出现次数最多的n个颜色
+	 *
+	 * @return 按出现次数从多到少排列的颜色
+	 */
+	int[] top(int n) {
+		n = Math.max(0, Math.min(n, size));
+		/*
+		 * 次数在高32位，颜色取反后在低32位，升序排序后从末尾取即为次数降序、颜色升序
+		 */
+		long[] order = new long[size];
+		int k = 0;
+		for (int i = 0; i < colors.length; i++) {
+			if (counts[i] != 0) order[k++] = (long) counts[i] << 32 | (~colors[i] & 0xFFFFFFFFL);
+		}
+		Arrays.sort(order);
+		int[] top = new int[n];
+		for (int i = 0; i < n; i++) top[i] = ~(int) order[size - 1 - i];
+		return top;
+	}
+
+	/**
+	 * 标记出现次数最多的n个颜色，取消之前的标记
+	 */
+	void keepTop(int n) {
+		kept = new boolean[colors.length];
+		for (int color : top(n)) kept[slot(color)] = true;
+	}
+
+	/**
+	 * 颜色是否被keepTop标记
+	 */
+	boolean isKept(int color) {
+		if (kept == null) return false;
+		int slot = slot(color);
+		return counts[slot] != 0 && kept[slot];
+	}
+
+	/**
+	 * 颜色所在的位置，不存在时为应插入的空位
+	 */
+	private int slot(int color) {
+		int mask = colors.length - 1;
+		int hash = color * 0x9E3779B9;
+		int slot = (hash ^ hash >>> 16) & mask;
+		while (counts[slot] != 0 && colors[slot] != color) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void grow() {
+		int[] oldColors = colors;
+		int[] oldCounts = counts;
+		boolean[] oldKept = kept;
+		colors = new int[oldColors.length * 2];
+		counts = new int[oldColors.length * 2];
+		kept = oldKept == null ? null : new boolean[colors.length];
+		for (int i = 0; i < oldColors.length; i++) {
+			if (oldCounts[i] == 0) continue;
+			int slot = slot(oldColors[i]);
+			colors[slot] = oldColors[i];
+			counts[slot] = oldCounts[i];
+			if (oldKept != null) kept[slot] = oldKept[i];
+		}
+	}
+}
@@ -0,0 +1,474 @@
+package org.tafia.captcha;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.tafia.captcha.CaptchaParse.CaptchaConfig;
+import org.tafia.captcha.ParseMetrics.Stage;
+
+/**
+ * 配置参数调优
+ *
+ * <p>在已标注的图片上搜索border、italic、threshold、noise、block、isometry的取值组合，
+ * 图片的标注取自文件名（见TemplateRecognizer.label），识别结果去掉空白后忽略大小写与标注比较。
+ * 找出正确率达到目标的组合中平均耗时最短的一个，都达不到时取正确率最高的</p>
+ *
+ * <p>候选组合按流程中的阶段顺序排列成前缀树，每张图片只沿树处理一遍：
+ * 前缀相同的组合共用前面各阶段的结果，只在取值不同的阶段复制一份继续处理，
+ * 例如noise不同的组合使用同一张二值化后的图片。处理后的二值图片完全相同时只识别一次。
+ * 每个组合的耗时为其路径上各阶段的耗时加上识别耗时，与单独解析时的耗时相当，处理或识别失败视为识别错误。
+ * 图片在线程池中并行处理，加载图片时不使用luma</p>
+ */
+public class ConfigTuner {
+
+	/**
+	 * 可调参数，按流程中的阶段顺序排列
+	 */
+	private static final String[] KEYS = {"border", "italic", "threshold", "noise", "block", "isometry"};
+
+	/**
+	 * 各参数对应的阶段
+	 */
+	private static final Stage[] STAGES = {Stage.BORDER, Stage.ITALIC, Stage.BINARYZATION,
+			Stage.NOISE, Stage.BLOCK, Stage.INCISE};
+
+	/**
+	 * 未指定取值时的默认候选值，isometry只在指定了chars时尝试true
+	 */
+	private static final String[] DEFAULTS = {"0,1,2", "false,true", "0,100,128,160",
+			"-1,0,1,2", "-1,0,10,30", "false,true"};
+
+	private static final int BORDER = 0;
+
+	private static final int ITALIC = 1;
+
+	private static final int THRESHOLD = 2;
+
+	private static final int NOISE = 3;
+
+	private static final int BLOCK = 4;
+
+	private static final int ISOMETRY = 5;
+
+	/**
+	 * 候选组合及其在标注图片上的表现
+	 */
+	public static class Candidate {
+
+		/**
+		 * 各参数取值在候选值中的下标
+		 */
+		private final int[] indices;
+
+		private final String[] values;
+
+		private final CaptchaPipeline pipeline;
+
+		private int correct;
+
+		private int total;
+
+		private long nanos;
+
+		Candidate(int[] indices, String[] values, CaptchaPipeline pipeline) {
+			this.indices = indices;
+			this.values = values;
+			this.pipeline = pipeline;
+		}
+
+		/**
+		 * 参数取值
+		 *
+		 * @param key 参数名
+		 * @return 取值，不是可调参数时返回null
+		 */
+		public String getValue(String key) {
+			int index = Arrays.asList(KEYS).indexOf(key);
+			return index < 0 ? null : values[index];
+		}
+
+		/**
+		 * 正确率
+		 */
+		public double getAccuracy() {
+			return total == 0 ? 0 : (double) correct / total;
+		}
+
+		/**
+		 * 平均耗时，单位毫秒
+		 */
+		public double getElapsed() {
+			return total == 0 ? 0 : nanos / 1e6 / total;
+		}
+
+		/**
+		 * 与Bootstrap输入格式相同的参数
+		 */
+		public String getParams() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < KEYS.length; i++) {
+				if (i > 0) sb.append(' ');
+				sb.append(KEYS[i]).append('=').append(values[i]);
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%s accuracy=%.4f elapsed=%.3fms", getParams(), getAccuracy(), getElapsed());
+		}
+	}
+
+	/**
+	 * 单张图片上各组合的结果，下标与候选组合对应
+	 */
+	private static class Outcome {
+
+		private final boolean[] correct;
+
+		private final long[] nanos;
+
+		Outcome(int size) {
+			correct = new boolean[size];
+			nanos = new long[size];
+		}
+	}
+
+	/**
+	 * 已识别的图片
+	 */
+	private static class Recognition {
+
+		private final String result;
+
+		private final long nanos;
+
+		Recognition(String result, long nanos) {
+			this.result = result;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * 按内容比较的二值图片
+	 */
+	private static class Fingerprint {
+
+		private final BinaryImage image;
+
+		private final int hash;
+
+		Fingerprint(BinaryImage image) {
+			this.image = image;
+			this.hash = (image.width * 31 + image.height) * 31 + Arrays.hashCode(image.words);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Fingerprint)) return false;
+			BinaryImage other = ((Fingerprint) obj).image;
+			return image.width == other.width && image.height == other.height
+					&& Arrays.equals(image.words, other.words);
+		}
+	}
+
+	/**
+	 * 不参与调优的参数
+	 */
+	private final String[] base;
+
+	/**
+	 * 各参数的候选值
+	 */
+	private final String[][] choices = new String[KEYS.length][];
+
+	private final int workers;
+
+	private final int parallel;
+
+	/**
+	 * @param params 配置参数，格式与Bootstrap输入相同的键值对，可调参数的值可以是逗号分隔的多个候选值，
+	 * 未指定的可调参数使用默认候选值
+	 * @param workers 并行线程数
+	 */
+	public ConfigTuner(String[] params, int workers) {
+		if (workers < 1) throw new IllegalArgumentException("线程数必须大于0");
+		List<String> base = new ArrayList<>();
+		for (int i = 0; i < params.length - 1; i += 2) {
+			int index = Arrays.asList(KEYS).indexOf(params[i]);
+			if (index < 0) {
+				base.add(params[i]);
+				base.add(params[i+1]);
+			} else {
+				choices[index] = params[i+1].split(",");
+			}
+		}
+		this.base = base.toArray(new String[base.size()]);
+		CaptchaConfig.Builder builder = new CaptchaConfig.Builder();
+		Bootstrap.configure(builder, this.base);
+		CaptchaConfig config = builder.build();
+		if (choices[ISOMETRY] == null && config.getChars() == 0) choices[ISOMETRY] = new String[] {"false"};
+		for (int i = 0; i < KEYS.length; i++) {
+			if (choices[i] == null) choices[i] = DEFAULTS[i].split(",");
+		}
+		this.workers = workers;
+		this.parallel = config.getParallel();
+	}
+
+	/**
+	 * 搜索所有取值组合
+	 *
+	 * @param input 标注图片所在的目录、通配符或列表文件
+	 * @return 按候选值顺序排列的组合
+	 */
+	public List<Candidate> tune(String input) throws IOException {
+		return tune(input, 0, 0);
+	}
+
+	/**
+	 * 搜索取值组合
+	 *
+	 * @param input 标注图片所在的目录、通配符或列表文件
+	 * @param samples 随机选取的组合数量，小于等于0或不少于组合总数时搜索所有组合
+	 * @param seed 随机种子
+	 * @return 按候选值顺序排列的组合
+	 */
+	public List<Candidate> tune(String input, int samples, long seed) throws IOException {
+		List<Path> files = BatchParse.resolve(input);
+		if (files.isEmpty()) throw new IOException("没有标注图片" + input);
+		final List<Candidate> candidates = candidates(samples, seed);
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			CompletionService<Outcome> service = new ExecutorCompletionService<>(executor);
+			for (final Path file : files) {
+				service.submit(() -> evaluate(file, candidates));
+			}
+			for (int i = 0; i < files.size(); i++) {
+				Outcome outcome = service.take().get();
+				for (int j = 0; j < candidates.size(); j++) {
+					Candidate candidate = candidates.get(j);
+					if (outcome.correct[j]) candidate.correct++;
+					candidate.nanos += outcome.nanos[j];
+					candidate.total++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("调优被中断", e);
+		} catch (ExecutionException e) {
+			throw new IOException("调优失败", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return candidates;
+	}
+
+	/**
+	 * 选出正确率达到目标的组合中平均耗时最短的，都达不到时选正确率最高的，正确率相同时选耗时短的
+	 *
+	 * @param candidates 已搜索的组合
+	 * @param accuracy 目标正确率
+	 * @return 选出的组合，没有组合时返回null
+	 */
+	public static Candidate select(List<Candidate> candidates, double accuracy) {
+		return candidates.isEmpty() ? null : Collections.min(candidates, order(accuracy));
+	}
+
+	/**
+	 * 正确率达到目标的在前，按耗时排列；其余按正确率从高到低、耗时从短到长排列
+	 */
+	private static Comparator<Candidate> order(final double accuracy) {
+		return (a, b) -> {
+			boolean passed = a.getAccuracy() >= accuracy;
+			if (passed != b.getAccuracy() >= accuracy) return passed ? -1 : 1;
+			if (!passed && a.correct != b.correct) return b.correct - a.correct;
+			return Long.compare(a.nanos, b.nanos);
+		};
+	}
+
+	/**
+	 * 调优并输出结果
+	 *
+	 * <p>按选择的先后输出前10个组合，最后输出选出的组合</p>
+	 * @param input 标注图片所在的目录、通配符或列表文件
+	 * @param accuracy 目标正确率
+	 * @param samples 随机选取的组合数量，小于等于0时搜索所有组合
+	 * @param seed 随机种子
+	 * @param out 输出
+	 * @return 选出的组合
+	 */
+	public Candidate run(String input, double accuracy, int samples, long seed, PrintWriter out) throws IOException {
+		long start = System.nanoTime();
+		List<Candidate> candidates = new ArrayList<>(tune(input, samples, seed));
+		Collections.sort(candidates, order(accuracy));
+		for (int i = 0; i < Math.min(10, candidates.size()); i++) {
+			out.println("candidate:" + candidates.get(i));
+		}
+		Candidate selected = candidates.get(0);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		out.println(String.format(Locale.ROOT, "summary:candidates=%d files=%d workers=%d elapsed=%.3fs",
+				candidates.size(), selected.total, workers, seconds));
+		out.println((selected.getAccuracy() >= accuracy ? "result:" : "result(below target):") + selected);
+		out.flush();
+		return selected;
+	}
+
+	/**
+	 * 生成候选组合
+	 *
+	 * <p>随机选取时先在组合总数中不重复地抽取编号，再按编号从小到大排列，保持前缀树的顺序</p>
+	 */
+	private List<Candidate> candidates(int samples, long seed) {
+		long size = 1;
+		for (String[] values : choices) size *= values.length;
+		if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("候选组合过多" + size);
+		int[] numbers = new int[(int) size];
+		for (int i = 0; i < numbers.length; i++) numbers[i] = i;
+		if (samples > 0 && samples < numbers.length) {
+			Random random = new Random(seed);
+			for (int i = 0; i < samples; i++) {
+				int j = i + random.nextInt(numbers.length - i);
+				int number = numbers[i];
+				numbers[i] = numbers[j];
+				numbers[j] = number;
+			}
+			numbers = Arrays.copyOf(numbers, samples);
+			Arrays.sort(numbers);
+		}
+		List<Candidate> candidates = new ArrayList<>(numbers.length);
+		for (int number : numbers) {
+			int[] indices = new int[KEYS.length];
+			String[] values = new String[KEYS.length];
+			for (int i = KEYS.length - 1; i >= 0; i--) {
+				indices[i] = number % choices[i].length;
+				values[i] = choices[i][indices[i]];
+				number /= choices[i].length;
+			}
+			candidates.add(new Candidate(indices, values, compile(values)));
+		}
+		return candidates;
+	}
+
+	private CaptchaPipeline compile(String[] values) {
+		CaptchaConfig.Builder builder = new CaptchaConfig.Builder();
+		Bootstrap.configure(builder, base);
+		builder.border(Integer.valueOf(values[BORDER]))
+			.threshold(Integer.valueOf(values[THRESHOLD]))
+			.noise(Integer.valueOf(values[NOISE]))
+			.block(Integer.valueOf(values[BLOCK]));
+		if (Boolean.valueOf(values[ITALIC])) builder.italic();
+		if (Boolean.valueOf(values[ISOMETRY])) {
+			if (builder.build().getChars() == 0) throw new IllegalArgumentException("等宽切割必须指定字符数");
+			builder.isometry();
+		}
+		return builder.build().compile();
+	}
+
+	/**
+	 * 在一张图片上评估所有组合
+	 */
+	private Outcome evaluate(Path file, List<Candidate> candidates) throws IOException {
+		BufferedImage image = ImageLoader.load(file);
+		if (image == null) throw new IOException("无法识别的图片格式" + file);
+		Outcome outcome = new Outcome(candidates.size());
+		ImageFilter filter = new ImageFilter(image).parallel(parallel);
+		descend(candidates, 0, candidates.size(), 0, filter, 0,
+				TemplateRecognizer.label(file), new HashMap<Fingerprint, Recognition>(), outcome);
+		return outcome;
+	}
+
+	/**
+	 * 沿前缀树处理
+	 *
+	 * @param candidates 候选组合
+	 * @param from 当前子树的第一个组合
+	 * @param to 当前子树之后的第一个组合，[from, to)的组合在level之前的取值都相同
+	 * @param level 要处理的参数
+	 * @param filter 前面各阶段处理后的结果，可以修改
+	 * @param elapsed 前面各阶段的耗时
+	 * @param label 标注
+	 * @param recognized 已识别的图片
+	 * @param outcome 结果
+	 */
+	private void descend(List<Candidate> candidates, int from, int to, int level, ImageFilter filter, long elapsed,
+			String label, Map<Fingerprint, Recognition> recognized, Outcome outcome) {
+		if (level == KEYS.length) {
+			Candidate candidate = candidates.get(from);
+			Recognition recognition = recognize(candidate, filter, recognized);
+			outcome.correct[from] = matches(recognition.result, label);
+			outcome.nanos[from] = elapsed + recognition.nanos;
+			return;
+		}
+		int first = from;
+		while (first < to) {
+			int index = candidates.get(first).indices[level];
+			int last = first + 1;
+			while (last < to && candidates.get(last).indices[level] == index) last++;
+			/*
+			 * 最后一个分支之后不再需要当前结果，直接在其上修改
+			 */
+			ImageFilter branch = last == to ? filter : filter.copy();
+			long start = System.nanoTime();
+			try {
+				branch = candidates.get(first).pipeline.apply(STAGES[level], branch);
+			} catch (RuntimeException e) {
+				/*
+				 * 处理失败的组合视为识别错误，如图片太窄无法等宽切割
+				 */
+				Arrays.fill(outcome.nanos, first, last, elapsed + System.nanoTime() - start);
+				first = last;
+				continue;
+			}
+			long nanos = System.nanoTime() - start;
+			descend(candidates, first, last, level + 1, branch, elapsed + nanos, label, recognized, outcome);
+			first = last;
+		}
+	}
+
+	/**
+	 * 识别处理后的图片，已二值化且与之前识别过的图片完全相同时使用之前的结果和耗时
+	 */
+	private static Recognition recognize(Candidate candidate, ImageFilter filter, Map<Fingerprint, Recognition> recognized) {
+		Fingerprint fingerprint = null;
+		if (Integer.valueOf(candidate.values[THRESHOLD]) >= 0) {
+			fingerprint = new Fingerprint(filter.renderBinary());
+			Recognition recognition = recognized.get(fingerprint);
+			if (recognition != null) return recognition;
+		}
+		long start = System.nanoTime();
+		String result;
+		try {
+			result = candidate.pipeline.result(filter);
+		} catch (RuntimeException e) {
+			result = null;
+		}
+		Recognition recognition = new Recognition(result, System.nanoTime() - start);
+		if (fingerprint != null) recognized.put(fingerprint, recognition);
+		return recognition;
+	}
+
+	private static boolean matches(String result, String label) {
+		return result != null && result.replaceAll("\\s", "").equalsIgnoreCase(label);
+	}
+}
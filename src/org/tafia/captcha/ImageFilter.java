@@ -3,11 +3,11 @@ package org.tafia.captcha;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 
 /**
@@ -31,9 +31,130 @@ public class ImageFilter {
 	
 	private BufferedImage image;
 	
+	/**
+	 * 二值化后的图片，不为null时以此为准，image不再同步
+	 */
+	private BinaryImage binary;
+	
+	/**
+	 * 像素的r、g、b都等于灰度值，灰度化时不再计算
+	 */
+	private boolean gray;
+	
+	/**
+	 * 图片所在的线程缓冲，为null时图片不在缓冲中
+	 */
+	private BufferPool pool;
+	
+	/**
+	 * 图片所在的缓冲编号
+	 */
+	private int slot;
+	
+	/**
+	 * 像素数不少于此值时按行分块并行处理，小于等于0表示不并行
+	 */
+	private int parallel = RowBands.DEFAULT_PIXELS;
+	
+	/**
+	 * @param image 图片，TYPE_BYTE_GRAY图片（如ImageLoader.loadGray的结果）的采样值直接作为灰度
+	 */
 	public ImageFilter(BufferedImage image) {
 		this.image = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-		this.image.setData(image.getRaster());
+		this.gray = copy(image, this.image);
+	}
+	
+	
+	public ImageFilter(BinaryImage binary) {
+		this.binary = binary.copy();
+	}
+	
+	private ImageFilter() {}
+	
+	/**
+	 * 将图片复制到当前线程的缓冲中处理，之后的处理在缓冲中进行，不再分配整张图片
+	 * 
+	 * <p>同一线程内同时只能有一个这样的Filter，render的结果不使用缓冲</p>
+	 * @param image 图片
+	 * @return 使用线程缓冲的Filter
+	 */
+	static ImageFilter pooled(BufferedImage image) {
+		ImageFilter filter = new ImageFilter();
+		filter.pool = BufferPool.get();
+		filter.image = filter.pool.image(0, image.getWidth(), image.getHeight());
+		filter.gray = copy(image, filter.image);
+		return filter;
+	}
+	
+	/**
+	 * 复制当前状态，副本不使用线程缓冲，之后的处理互不影响
+	 * 
+	 * @return 新的Filter
+	 */
+	ImageFilter copy() {
+		ImageFilter copy = new ImageFilter();
+		if (binary != null) {
+			copy.binary = binary.copy();
+		} else {
+			copy.image = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+			copy(image, copy.image);
+		}
+		copy.gray = gray;
+		copy.parallel = parallel;
+		return copy;
+	}
+	
+	/**
+	 * 设置并行处理的像素数阈值
+	 * 
+	 * <p>图片像素数不少于pixels时，graying、binaryzation、grayBinaryzation、decreaseColor、
+	 * clearBackground和clearNoise将图片按行分块在ForkJoinPool.commonPool中并行处理。
+	 * 并行时clearNoise改为先复制一份再判断，每个像素都按处理前的邻域判断，结果与线程数无关，
+	 * 但与逐个原地修改的串行结果可能不同</p>
+	 * @param pixels 像素数阈值，小于等于0表示不并行，默认为1048576
+	 * @return 当前Filter对象
+	 */
+	public ImageFilter parallel(int pixels) {
+		this.parallel = pixels;
+		return this;
+	}
+	
+	/**
+	 * 复制像素到扫描行长度等于宽度的TYPE_INT_RGB图片
+	 * 
+	 * <p>三个波段的图片按行读取采样值，结果与setData相同；其它图片使用setData</p>
+	 * @return 是否已是灰度
+	 */
+	private static boolean copy(BufferedImage source, BufferedImage target) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		Raster raster = source.getRaster();
+		int[] data = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+		if (source.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			/*
+			 * 不经过getRGB，避免线性灰度色彩空间到sRGB的转换改变灰度值
+			 */
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				raster.getSamples(0, y, width, 1, 0, row);
+				int base = y * width;
+				for (int x = 0; x < width; x++) data[base + x] = row[x] * 0x010101;
+			}
+			return true;
+		}
+		if (raster.getNumBands() == 3) {
+			int[] samples = new int[width * 3];
+			for (int y = 0; y < height; y++) {
+				raster.getPixels(0, y, width, 1, samples);
+				int base = y * width;
+				for (int x = 0, i = 0; x < width; x++, i += 3) {
+					data[base + x] = (samples[i] & 0xFF) << 16 | (samples[i + 1] & 0xFF) << 8 | samples[i + 2] & 0xFF;
+				}
+			}
+			return false;
+		}
+		target.setData(raster);
+		return false;
 	}
 	
 	/**
@@ -42,26 +163,25 @@ public class ImageFilter {
 	 * @return 当前Filter对象
 	 */
 	public ImageFilter graying() {
+		unpack();
+		if (gray) return this;
 		int width = image.getWidth();
 		int height = image.getHeight();
-		
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int rgb = image.getRGB(x, y);
-				int red = (rgb >> 16) & 0xFF;
-				int green = (rgb >> 8) & 0xFF;
-				int blue = rgb & 0xFF;
-				/*
-				 * 使用加权法灰度图像，权重(r,g,b) = (0.299, 0.587, 0.114)
-				 * 求出加权平均灰度gray，再另当前元素的red=gay,
-				 * green=gray,blue=gray得到灰度化图
-				 */
-				int gray= (int)(0.299 * red + 0.587 * green + 0.114 * blue) & 0xFF;
-				gray |= gray <<= 8;
-				gray |= gray <<= 8;
-				image.setRGB(x, y, gray);
+		Pixels pixels = new Pixels(image);
+		RowBands.run(width, height, parallel, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) {
+					/*
+					 * 使用加权法灰度图像，权重(r,g,b) = (0.299, 0.587, 0.114)
+					 * 求出加权平均灰度gray，再另当前元素的red=gay,
+					 * green=gray,blue=gray得到灰度化图
+					 */
+					int gray = PixelKernels.luma(pixels.data[index + x]);
+					pixels.data[index + x] = gray * 0x010101;
+				}
 			}
-		}
+		});
 		return this;
 	}
 	
@@ -86,18 +206,22 @@ public class ImageFilter {
 	 * @return 当前Filter对象
 	 */
 	public ImageFilter binaryzation(int threshold) {
+		unpack();
 		int width = image.getWidth();
 		int height = image.getHeight();
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int gray = image.getRGB(x, y) & 0xFF;
-				if (gray > threshold) {
-					image.setRGB(x, y, BACKGROUND_COLOR);
-				} else {
-					image.setRGB(x, y, FOREGROUND_COLOR);
+		BinaryImage binary = new BinaryImage(width, height);
+		long[] words = binary.words;
+		Pixels pixels = new Pixels(image);
+		RowBands.run(width, height, parallel, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				int base = y * binary.stride;
+				for (int i = 0, x = 0; i < binary.stride; i++, x += 64) {
+					words[base + i] = PixelKernels.threshold(pixels.data, index + x, Math.min(64, width - x), threshold);
 				}
 			}
-		}
+		});
+		this.binary = binary;
 		rectify();
 		return this;
 	}
@@ -109,16 +233,21 @@ public class ImageFilter {
 	 * @return
 	 */
 	public ImageFilter decreaseColor(int maxColor) {
+		unpack();
+		gray = false;
 		int bound = 0xFFFFFF / maxColor;
 		int width = image.getWidth();
 		int height = image.getHeight();
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int rgb = image.getRGB(x, y) & 0xFFFFFF;
-				rgb = rgb / bound * bound + bound / 2;
-				image.setRGB(x, y, rgb);
+		Pixels pixels = new Pixels(image);
+		RowBands.run(width, height, parallel, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) {
+					int rgb = pixels.data[index + x] & 0xFFFFFF;
+					pixels.data[index + x] = (rgb / bound * bound + bound / 2) & 0xFFFFFF;
+				}
 			}
-		}
+		});
 		return this;
 	}
 	
@@ -128,43 +257,59 @@ public class ImageFilter {
 	 * @return 最佳灰度阈值
 	 */
 	private int ostu() {
+		unpack();
 		int width = image.getWidth();
 		int height = image.getHeight();
 		
 		/*
 		 * 获取灰度直方图，灰度i的像素数G(i)=histogram[i];
 		 */
-		float[] histogram = new float[256];
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int gray = image.getRGB(x, y) & 0xFF;
-				histogram[gray]++;
+		Pixels pixels = new Pixels(image);
+		int[] histogram = RowBands.reduce(width, height, parallel, (from, to) -> {
+			int[] band = new int[256];
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) band[pixels.data[index + x] & 0xFF]++;
 			}
-		}
-		/*
-		 * 将灰度直方图的像素数转换为像素数占总像素数的比例，
-		 * 灰度为i的像素所占比例R(i)=histogram[i]
-		 */
-		int totalPixel = width * height; //总像素数量
-		float avgGrayscale = 0;          //总平均灰度
+			return band;
+		}, ImageFilter::add);
+		return ostu(histogram, width * height);
+	}
+	
+	/**
+	 * 直方图相加，结果存入a
+	 */
+	private static int[] add(int[] a, int[] b) {
+		for (int i = 0; i < a.length; i++) a[i] += b[i];
+		return a;
+	}
+	
+	/**
+	 * 最大类间方差法求最佳阈值
+	 * 
+	 * <p>类间方差w0*w1*(u0-u1)^2化简为(N*S0-N0*S)^2/(N0*N1)，直方图以整数累加</p>
+	 * @param histogram 灰度直方图
+	 * @param totalPixel 总像素数量
+	 * @return 最佳灰度阈值
+	 */
+	private static int ostu(int[] histogram, int totalPixel) {
+		long graySum = 0;             //总灰度
 		for (int i = 0; i < 256; i++) {
-			histogram[i] /= totalPixel;
-			avgGrayscale += i * histogram[i];
+			graySum += (long) i * histogram[i];
 		}
 		int threshold = 0;            //最大方差下的阈值
-		float maxVariance = 0;        //最大方差
-		float foreGrayscaleRatio = 0; //前景灰度占比
-		float foreGrayscaleSum = 0;   //前景平均灰度加权总和
+		double maxVariance = 0;       //最大方差
+		long foreCount = 0;           //前景像素数量
+		long foreGraySum = 0;         //前景灰度总和
 		for (int i = 0; i < 256; i++) {
-			foreGrayscaleRatio += histogram[i];
-			foreGrayscaleSum += i * histogram[i];
-			//当前阈值下的前景平均灰度
-			float foreAvgGrayscale = foreGrayscaleSum / foreGrayscaleRatio;
+			foreCount += histogram[i];
+			foreGraySum += (long) i * histogram[i];
+			long backCount = totalPixel - foreCount;
+			if (foreCount == 0) continue;
+			if (backCount == 0) break;
+			double diff = (double) totalPixel * foreGraySum - (double) foreCount * graySum;
 			//类间方差公式
-			float variance = (foreAvgGrayscale - avgGrayscale) 
-								* (foreAvgGrayscale - avgGrayscale)
-								* foreGrayscaleRatio
-								/ (1-foreGrayscaleRatio);
+			double variance = diff * diff / ((double) foreCount * backCount);
 			if (variance > maxVariance) {
 				maxVariance = variance;
 				threshold = i;
@@ -173,6 +318,95 @@ public class ImageFilter {
 		return threshold;
 	}
 	
+	/**
+	 * 灰度化并自动阈值二值化
+	 * 
+	 * <p>结果与graying().binaryzation()相同。第一遍直接读取像素数据计算灰度和直方图，
+	 * 第二遍按阈值写入二值图片并统计前景数量用于矫正</p>
+	 * @return 当前Filter对象
+	 */
+	public ImageFilter grayBinaryzation() {
+		unpack();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		byte[] grays = grays(width * height);
+		int[] histogram = readGray(grays, true);
+		return binaryzation(grays, ostu(histogram, width * height));
+	}
+	
+	/**
+	 * 灰度化并二值化
+	 * 
+	 * <p>结果与graying().binaryzation(threshold)相同</p>
+	 * @param threshold 阈值
+	 * @return 当前Filter对象
+	 */
+	public ImageFilter grayBinaryzation(int threshold) {
+		unpack();
+		byte[] grays = grays(image.getWidth() * image.getHeight());
+		readGray(grays, false);
+		return binaryzation(grays, threshold);
+	}
+	
+	private byte[] grays(int size) {
+		return pool != null ? pool.grays(size) : new byte[size];
+	}
+	
+	/**
+	 * 按行读取灰度值，可同时统计直方图
+	 * 
+	 * <p>直接读取DataBufferInt，已是灰度的像素直接取蓝色分量</p>
+	 * @param grays 灰度输出，长度为width*height
+	 * @param histogram 是否统计灰度直方图
+	 * @return 灰度直方图，不统计时返回null
+	 */
+	private int[] readGray(byte[] grays, boolean histogram) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean gray = this.gray;
+		Pixels pixels = new Pixels(image);
+		return RowBands.reduce(width, height, parallel, (from, to) -> {
+			int[] band = histogram ? new int[256] : null;
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				int base = y * width;
+				for (int x = 0; x < width; x++) {
+					int rgb = pixels.data[index + x];
+					int value = gray ? rgb & 0xFF : PixelKernels.luma(rgb);
+					grays[base + x] = (byte) value;
+					if (band != null) band[value]++;
+				}
+			}
+			return band;
+		}, (a, b) -> a == null ? null : add(a, b));
+	}
+	
+	/**
+	 * 按阈值将灰度值写入二值图片，前景多于背景时取反色
+	 */
+	private ImageFilter binaryzation(byte[] grays, int threshold) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BinaryImage binary = new BinaryImage(width, height);
+		long[] words = binary.words;
+		long foreCount = RowBands.reduce(width, height, parallel, (from, to) -> {
+			long count = 0;
+			for (int y = from; y < to; y++) {
+				int base = y * width;
+				int row = y * binary.stride;
+				for (int i = 0, x = 0; i < binary.stride; i++, x += 64) {
+					long word = PixelKernels.threshold(grays, base + x, Math.min(64, width - x), threshold);
+					words[row + i] = word;
+					count += Long.bitCount(word);
+				}
+			}
+			return count;
+		}, Long::sum);
+		if (foreCount > (long) width * height - foreCount) binary.invert();
+		this.binary = binary;
+		return this;
+	}
+	
 	
 	/**
 	 * 8邻接滤波，自动计算精度
@@ -191,9 +425,10 @@ public class ImageFilter {
 	 * @return 当前Filter对象
 	 */
 	public ImageFilter clearNoise(int accuracy) {
-		
+		if (binary != null) return clearBinaryNoise(accuracy);
 		int width = image.getWidth();
 		int height = image.getHeight();
+		if (RowBands.parallel(width, height, parallel)) return clearBufferedNoise(accuracy);
 		int[] window = new int[8]; //存储当前元素周边的8个元素
 		for (int x = 0; x < width; x++) {
 			for (int y = 0; y < height; y++) {
@@ -224,12 +459,158 @@ public class ImageFilter {
 		return this;
 	}
 	
+	/**
+	 * 按行分块并行的8邻接滤波
+	 * 
+	 * <p>先复制一份像素，各块只从副本读取邻域，相邻块的行无需同步，结果与分块方式和线程数无关</p>
+	 */
+	private ImageFilter clearBufferedNoise(int accuracy) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		Pixels pixels = new Pixels(image);
+		/*
+		 * 副本中的颜色与getRGB相同，带不透明的alpha
+		 */
+		int[] source = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			int index = pixels.index(0, y);
+			for (int x = 0; x < width; x++) source[y * width + x] = pixels.data[index + x] | 0xFF000000;
+		}
+		RowBands.run(width, height, parallel, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) {
+					//清除边缘
+					if (x == 0 || x == width - 1 || y == 0 || y == height - 1) {
+						pixels.data[index + x] = BACKGROUND_COLOR;
+						continue;
+					}
+					int center = y * width + x;
+					int current = source[center];
+					if (current == BACKGROUND_COLOR) continue;
+					int count = 0;
+					if (source[center - width - 1] == current) count++;
+					if (source[center - width] == current) count++;
+					if (source[center - width + 1] == current) count++;
+					if (source[center - 1] == current) count++;
+					if (source[center + 1] == current) count++;
+					if (source[center + width - 1] == current) count++;
+					if (source[center + width] == current) count++;
+					if (source[center + width + 1] == current) count++;
+					if (count < accuracy) pixels.data[index + x] = BACKGROUND_COLOR;
+				}
+			}
+		});
+		return this;
+	}
+	
+	/**
+	 * 二值图片的8邻接滤波，扫描顺序与{@link #clearNoise(int)}相同，结果一致
+	 * 
+	 * <p>达到并行阈值时与像素图片一样改为按处理前的邻域判断</p>
+	 */
+	private ImageFilter clearBinaryNoise(int accuracy) {
+		int width = binary.width;
+		int height = binary.height;
+		if (RowBands.parallel(width, height, parallel)) return clearBufferedBinaryNoise(accuracy);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				//清除边缘
+				if (x == 0 || x == width - 1 || y == 0 || y == height - 1){
+					binary.clear(x, y);
+					continue;
+				}
+				if (!binary.get(x, y)) continue;
+				int count = 0;
+				if (binary.get(x-1, y-1)) count++;
+				if (binary.get(x, y-1)) count++;
+				if (binary.get(x+1, y-1)) count++;
+				if (binary.get(x-1, y)) count++;
+				if (binary.get(x+1, y)) count++;
+				if (binary.get(x-1, y+1)) count++;
+				if (binary.get(x, y+1)) count++;
+				if (binary.get(x+1, y+1)) count++;
+				if (count < accuracy){
+					binary.clear(x, y);
+				}
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * 按行分块并行的二值图片8邻接滤波，结果与{@link #clearBufferedNoise(int)}相同
+	 * 
+	 * <p>每次处理一个long中的64个像素：8个方向的邻居各移位得到一个掩码，
+	 * 按位相加得到每个像素的邻居数（4个位平面），邻居数少于accuracy的前景像素清除</p>
+	 */
+	private ImageFilter clearBufferedBinaryNoise(int accuracy) {
+		int width = binary.width;
+		int height = binary.height;
+		int stride = binary.stride;
+		long[] words = binary.words;
+		long[] source = words.clone();
+		/*
+		 * 邻居数小于accuracy的像素：邻居数等于0到accuracy-1之一
+		 */
+		int limit = Math.min(Math.max(accuracy, 0), 9);
+		long lastBit = 1L << ((width - 1) & 63);
+		int lastWord = (width - 1) >>> 6;
+		RowBands.run(width, height, parallel, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int row = y * stride;
+				//清除边缘
+				if (y == 0 || y == height - 1) {
+					Arrays.fill(words, row, row + stride, 0);
+					continue;
+				}
+				for (int i = 0; i < stride; i++) {
+					long center = source[row + i];
+					if (center == 0) continue;
+					long c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+					for (int r = row - stride; r <= row + stride; r += stride) {
+						long word = source[r + i];
+						long west = word << 1;
+						if (i > 0) west |= source[r + i - 1] >>> 63;
+						long east = word >>> 1;
+						if (i < stride - 1) east |= source[r + i + 1] << 63;
+						for (int k = 0; k < 3; k++) {
+							long bit = k == 0 ? west : k == 1 ? east : r == row ? 0 : word;
+							/*
+							 * 四位计数器逐位加一
+							 */
+							long carry = c0 & bit;
+							c0 ^= bit;
+							long next = c1 & carry;
+							c1 ^= carry;
+							carry = next;
+							next = c2 & carry;
+							c2 ^= carry;
+							c3 |= next;
+						}
+					}
+					long sparse = 0;
+					for (int v = 0; v < limit; v++) {
+						sparse |= ((v & 1) != 0 ? c0 : ~c0) & ((v & 2) != 0 ? c1 : ~c1)
+								& ((v & 4) != 0 ? c2 : ~c2) & ((v & 8) != 0 ? c3 : ~c3);
+					}
+					long kept = center & ~sparse;
+					if (i == 0) kept &= ~1L;
+					if (i == lastWord) kept &= ~lastBit;
+					words[row + i] = kept;
+				}
+			}
+		});
+		return this;
+	}
+	
 	private int getNosieWidth() {
 		/*
 		 * 分别获取前景色和背景色中的最大矩形边长
 		 */
-		int maxForeSquare = maxSquare(FOREGROUND_COLOR);
-		int maxBackSquare = maxSquare(BACKGROUND_COLOR);
+		int[] squares = maxSquares();
+		int maxForeSquare = squares[0];
+		int maxBackSquare = squares[1];
 		/*
 		 * 选择较小的边长为精度，选择反色为噪点填充颜色
 		 */
@@ -245,41 +626,52 @@ public class ImageFilter {
 		return accuracy;
 	}
 	
-	private int maxSquare(int rgb) {
-		int length = 1;
-		int width = image.getWidth();
-		int height = image.getHeight();
-		outer :
-		while (true) {
-			for (int x = 0; x <= width - length; x++) {
-				for (int y = 0; y <= height - length; y++) {
-					if (image.getRGB(x, y) != rgb) continue;
-					if (isPureColor(x, y, length)) {
-						length++;
-						continue outer;
-					}
-				}
-			}
-			break;
-		}
-		return length-1;
-	}
 	/**
-	 * 检查以(x,y)为左上角的边长为length边长的正方形是否纯色
+	 * 动态规划求前景色和背景色的最大纯色正方形边长
 	 * 
-	 * @param x 横坐标
-	 * @param y 纵坐标
-	 * @param length 正方形边长
-	 * @return 如果是纯色则返回true，否则返回false
-	 */
-	private boolean isPureColor(int x, int y, int length) {
-		int key = image.getRGB(x, y);
-		for (int i = 0; i < length; i++) {
-			for (int j = 0; j < length; j++) {
-				if (image.getRGB(x+i, y+j) != key) return false;
+	 * <p>以(x,y)为右下角的最大纯色正方形边长
+	 * L(x,y) = min(L(x-1,y), L(x,y-1), L(x-1,y-1)) + 1，
+	 * 当左、上、左上三个像素与(x,y)同色时成立，否则为1。逐行扫描一遍得到两种颜色的结果</p>
+	 * @return {前景色最大边长, 背景色最大边长}
+	 */
+	private int[] maxSquares() {
+		int width = binary != null ? binary.width : image.getWidth();
+		int height = binary != null ? binary.height : image.getHeight();
+		int[] row = new int[width];
+		int[] prevRow = new int[width];
+		int[] lengths = new int[width];
+		int[] prevLengths = new int[width];
+		int maxFore = 0;
+		int maxBack = 0;
+		for (int y = 0; y < height; y++) {
+			if (binary != null) {
+				for (int x = 0; x < width; x++) {
+					row[x] = binary.get(x, y) ? FOREGROUND_COLOR : BACKGROUND_COLOR;
+				}
+			} else {
+				image.getRGB(0, y, width, 1, row, 0, width);
 			}
+			for (int x = 0; x < width; x++) {
+				int rgb = row[x];
+				int length = 1;
+				if (x > 0 && y > 0 && row[x-1] == rgb && prevRow[x] == rgb && prevRow[x-1] == rgb) {
+					length += Math.min(lengths[x-1], Math.min(prevLengths[x], prevLengths[x-1]));
+				}
+				lengths[x] = length;
+				if (rgb == FOREGROUND_COLOR) {
+					if (length > maxFore) maxFore = length;
+				} else if (rgb == BACKGROUND_COLOR) {
+					if (length > maxBack) maxBack = length;
+				}
+			}
+			int[] swap = prevRow;
+			prevRow = row;
+			row = swap;
+			swap = prevLengths;
+			prevLengths = lengths;
+			lengths = swap;
 		}
-		return true;
+		return new int[] {maxFore, maxBack};
 	}
 	
 	/**
@@ -296,59 +688,95 @@ public class ImageFilter {
 	 * @param limit 孤立下限，低于此值的像素块被视为噪点
 	 */
 	public ImageFilter clearBlock(int limit) {
-		int width = image.getWidth();
-		int height = image.getHeight();
-		int[][] data = new int[width][height];
-		int color = 1;
-		int count;
-		Map<Integer, Integer> map = new HashMap<>();
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if ((count = floorFill(data, x, y, color)) != 0) {
-					map.put(color, count);
-					color++;
+		BinaryImage mask = binary != null ? binary : BinaryImage.of(image);
+		int width = mask.width;
+		int height = mask.height;
+		int stride = mask.stride;
+		long[] words = mask.words;
+		/*
+		 * 第一遍按行扫描，前景像素取左、左上、上、右上已标记邻居的最小标记，
+		 * 邻居标记不同时合并等价类；没有已标记邻居时分配新标记
+		 */
+		int[] labels = new int[width * height];
+		int[] parent = new int[64];
+		int next = 1;
+		for (int y = 0; y < height; y++) {
+			int base = y * stride;
+			for (int i = 0; i < stride; i++) {
+				long word = words[base + i];
+				while (word != 0) {
+					int x = (i << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					int index = y * width + x;
+					int label = 0;
+					if (x > 0) label = union(parent, label, labels[index - 1]);
+					if (y > 0) {
+						int up = index - width;
+						if (x > 0) label = union(parent, label, labels[up - 1]);
+						label = union(parent, label, labels[up]);
+						if (x < width - 1) label = union(parent, label, labels[up + 1]);
+					}
+					if (label == 0) {
+						if (next == parent.length) parent = Arrays.copyOf(parent, next * 2);
+						parent[next] = next;
+						label = next++;
+					}
+					labels[index] = label;
 				}
 			}
 		}
-		for (Integer c : map.keySet()) {
-			int n = map.get(c);
-			if (n < limit) removeColor(data, c);
+		/*
+		 * 第二遍将标记归并到根并统计各连通分量的像素数量
+		 */
+		int[] sizes = new int[next];
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i] == 0) continue;
+			labels[i] = find(parent, labels[i]);
+			sizes[labels[i]]++;
+		}
+		/*
+		 * 最后一遍清除像素数量低于下限的连通分量
+		 */
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i] == 0 || sizes[labels[i]] >= limit) continue;
+			int x = i % width;
+			int y = i / width;
+			if (binary != null) binary.clear(x, y);
+			else image.setRGB(x, y, BACKGROUND_COLOR);
 		}
 		return this;
-		/*for (int i = 0; i < data.length; i++) {
-			for (int j = 0; j < data[i].length; j++) {
-				System.out.print(data[i][j]);
-			}
-			System.out.println();
-		}*/
-		//System.out.println(map);
-	}
-	
-	
-	private int floorFill(int[][] data, int i, int j, int color) {
-		if (data[i][j] != 0) return 0;
-		if (image.getRGB(i, j) != FOREGROUND_COLOR) return 0;
-		data[i][j] = color;
-		int count = 1;
-		if (i > 0) count += floorFill(data, i-1, j, color);
-		if (i < data.length - 1) count +=floorFill(data, i+1, j, color);
-		if (j > 0) count += floorFill(data, i, j-1, color);
-		if (j < data[i].length -  1) count += floorFill(data, i, j+1, color);
-		if (i > 0 && j > 0) count += floorFill(data, i-1, j-1, color);
-		if (i > 0 && j < data[i].length - 1) count += floorFill(data, i-1, j+1, color);
-		if (i < data.length - 1 && j > 0) count += floorFill(data, i+1, j-1, color);
-		if (i < data.length - 1 && j < data[i].length - 1) count += floorFill(data, i+1, j+1, color);
-		return count;
-	}
-	
-	private void removeColor(int[][] data, int color) {
-		for (int i = 0; i < data.length; i++) {
-			for (int j = 0; j < data[i].length; j++) {
-				if (data[i][j] == color) {
-					image.setRGB(i, j, BACKGROUND_COLOR);
-				}
-			}
+	}
+	
+	/**
+	 * 合并两个标记所在的等价类
+	 * 
+	 * @return 合并后的根标记，两者都为0时返回0
+	 */
+	private static int union(int[] parent, int a, int b) {
+		if (b == 0) return a;
+		b = find(parent, b);
+		if (a == 0) return b;
+		if (a == b) return a;
+		if (a < b) {
+			parent[b] = a;
+			return a;
 		}
+		parent[a] = b;
+		return b;
+	}
+	
+	/**
+	 * 查找标记的根，同时压缩路径
+	 */
+	private static int find(int[] parent, int label) {
+		int root = label;
+		while (parent[root] != root) root = parent[root];
+		while (parent[label] != root) {
+			int up = parent[label];
+			parent[label] = root;
+			label = up;
+		}
+		return root;
 	}
 	
 	/**
@@ -358,27 +786,18 @@ public class ImageFilter {
 	 * @return
 	 */
 	public ImageFilter rectify(){
-		int foreCount = 0;
-		int backCount = 0;
-		int width = image.getWidth();
-		int height = image.getHeight();
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (image.getRGB(x, y) == FOREGROUND_COLOR) foreCount++;
-				else backCount++;
-			}
-		}
+		/*
+		 * 非前景色的像素都视为背景色，取反色后图像即为二值图片
+		 */
+		BinaryImage mask = binary != null ? binary : BinaryImage.of(image);
+		long foreCount = mask.count();
+		long backCount = (long) mask.width * mask.height - foreCount;
 		if (foreCount > backCount) {
 			/*
 			 * 图像取反色
 			 */
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					if (image.getRGB(x, y) == FOREGROUND_COLOR) 
-						image.setRGB(x, y, BACKGROUND_COLOR);
-					else image.setRGB(x, y, FOREGROUND_COLOR);
-				}
-			}
+			mask.invert();
+			binary = mask;
 		}
 		return this;
 	}
@@ -386,74 +805,52 @@ public class ImageFilter {
 	/**
 	 * 色彩筛选
 	 * 
-	 * <p>保留颜色数量的前ration个颜色，过滤其他颜色</p>
+	 * <p>保留颜色数量的前ration个颜色，过滤其他颜色。每个分量按accuracy量化后统计，
+	 * 出现次数相同时颜色值小的在前</p>
 	 * @return
 	 */
 	public ImageFilter extractColor(float ratio, int accuracy){
-		Map<Integer, Integer> map = new HashMap<>();
+		unpack();
 		int bound = accuracy;
 		int width = image.getWidth();
 		int height = image.getHeight();
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int rgb = image.getRGB(x, y) & 0xFFFFFF;
-				int red = (rgb >> 16) & 0xFF;
-				int green = (rgb >> 8) & 0xFF;
-				int blue = rgb & 0xFF;
-				red = red / bound * bound + bound / 2;
-				green = green / bound * bound + bound / 2;
-				blue = red / bound * bound + bound / 2;
-				rgb |= red << 16 | green << 8 | blue;
-				Integer value = map.get(rgb);
-				if (value == null) map.put(rgb, 1);
-				else map.put(rgb, value+1);
-			}
-		}
-		int n = (int) (map.size() * ratio);
-		class Pair implements Comparable<Pair>{
-			int rgb;
-			int num;
-			public Pair(int rgb, int num) {
-				this.rgb = rgb;
-				this.num = num;
+		Pixels pixels = new Pixels(image);
+		ColorHistogram histogram = RowBands.reduce(width, height, parallel, (from, to) -> {
+			ColorHistogram band = new ColorHistogram();
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) band.add(quantize(pixels.data[index + x], bound));
 			}
-			
-			@Override
-			public String toString() {
-				return "(rgb=#"+Integer.toHexString(rgb)+", num="+num+")";
-			}
-
-			@Override
-			public int compareTo(Pair o) {
-				return o.num - num;
-			}
-		}
-		List<Pair> list = new ArrayList<>(map.size());
-		for (Integer key : map.keySet()) {
-			list.add(new Pair(key, map.get(key)));
-		}
-		Collections.sort(list);
-		List<Integer> colors = new ArrayList<>(n);
-		for (int i = 0; i < n; i++) {
-			Pair p = list.get(i);
-			colors.add(p.rgb);
-		}
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int rgb = image.getRGB(x, y) & 0xFFFFFF;
-				int red = (rgb >> 16) & 0xFF;
-				int green = (rgb >> 8) & 0xFF;
-				int blue = rgb & 0xFF;
-				red = red / bound * bound + bound / 2;
-				green = green / bound * bound + bound / 2;
-				blue = red / bound * bound + bound / 2;
-				rgb |= red << 16 | green << 8 | blue;
-				if (!colors.contains(rgb)) image.setRGB(x, y, BACKGROUND_COLOR);
+			return band;
+		}, ColorHistogram::merge);
+		int n = (int) (histogram.size() * ratio);
+		histogram.keepTop(n);
+		RowBands.run(width, height, parallel, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) {
+					if (!histogram.isKept(quantize(pixels.data[index + x], bound))) {
+						pixels.data[index + x] = BACKGROUND_COLOR;
+					}
+				}
 			}
-		}
+		});
 		return this;
 	}
 	
+	/**
+	 * 各分量取所在区间的中点，超过255时取255
+	 */
+	private static int quantize(int rgb, int bound) {
+		int red = (rgb >> 16) & 0xFF;
+		int green = (rgb >> 8) & 0xFF;
+		int blue = rgb & 0xFF;
+		red = Math.min(red / bound * bound + bound / 2, 0xFF);
+		green = Math.min(green / bound * bound + bound / 2, 0xFF);
+		blue = Math.min(blue / bound * bound + bound / 2, 0xFF);
+		return red << 16 | green << 8 | blue;
+	}
+	
 	/**
 	 * 色彩筛选
 	 * 
@@ -467,37 +864,33 @@ public class ImageFilter {
 	/**
 	 * 删除背景
 	 * 
-	 * <p>此方法视出现最多的颜色为背景</p>
+	 * <p>此方法视出现最多的颜色为背景，出现次数相同时取颜色值小的</p>
 	 * @return 当前Filter对象
 	 */
 	public ImageFilter clearBackground(int bound) {
-		Map<Integer, Integer> map = new HashMap<>();
+		unpack();
 		int width = image.getWidth();
 		int height = image.getHeight();
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int rgb = image.getRGB(x, y) & 0xFFFFFF;
-				Integer value = map.get(rgb);
-				if (value == null) map.put(rgb, 1);
-				else map.put(rgb, value+1);
+		Pixels pixels = new Pixels(image);
+		ColorHistogram histogram = RowBands.reduce(width, height, parallel, (from, to) -> {
+			ColorHistogram band = new ColorHistogram();
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) band.add(pixels.data[index + x] & 0xFFFFFF);
 			}
-		}
-		int maxNum = 0;
-		int maxRgb = 0;
-		for (Integer key : map.keySet()) {
-			int value = map.get(key);
-			if (value > maxNum) {
-				maxNum = value;
-				maxRgb = key;
-			}
-		}
+			return band;
+		}, ColorHistogram::merge);
+		int background = histogram.mostFrequent();
 		int n = 0xFFFFFF / bound;
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int rgb = image.getRGB(x, y) & 0xFFFFFF;
-				if (Math.abs(rgb - maxRgb) <= n) image.setRGB(x, y, BACKGROUND_COLOR);
+		RowBands.run(width, height, parallel, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int index = pixels.index(0, y);
+				for (int x = 0; x < width; x++) {
+					int rgb = pixels.data[index + x] & 0xFFFFFF;
+					if (Math.abs(rgb - background) <= n) pixels.data[index + x] = BACKGROUND_COLOR;
+				}
 			}
-		}
+		});
 		return this;
 	}
 	
@@ -507,7 +900,19 @@ public class ImageFilter {
 	 * @return
 	 */
 	public ImageFilter reitalic() {
-		BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		unpack();
+		BufferedImage newImage;
+		if (pool != null) {
+			/*
+			 * 在另一块缓冲中绘制，未绘制的区域与新图片一样为黑色
+			 */
+			slot = 1 - slot;
+			newImage = pool.image(slot, image.getWidth(), image.getHeight());
+			Arrays.fill(((DataBufferInt) newImage.getRaster().getDataBuffer()).getData(),
+					0, image.getWidth() * image.getHeight(), 0);
+		} else {
+			newImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		}
 		Graphics2D g = (Graphics2D) newImage.getGraphics();
 		g.setTransform(AffineTransform.getShearInstance(0.36, 0));
 		
@@ -519,16 +924,21 @@ public class ImageFilter {
 	}
 	
 	public ImageFilter clearBorder(int borderWidth) {
-		int width = image.getWidth();
-		int height = image.getHeight();
+		int width = binary != null ? binary.width : image.getWidth();
+		int height = binary != null ? binary.height : image.getHeight();
 		if (borderWidth < 1 || width < 2*borderWidth || height < 2*borderWidth) 
 			return this;
+		if (binary != null) {
+			binary = binary.crop(borderWidth, borderWidth, width-2*borderWidth, height-2*borderWidth);
+			return this;
+		}
 		image = image.getSubimage(borderWidth, borderWidth, width-2*borderWidth, height-2*borderWidth);
 		return this;
 	}
 	
 	@SuppressWarnings("unused")
 	private void showGrayscaleHistogram() {
+		unpack();
 		/*
 		 * 获取灰度直方图，灰度i的像素数G(i)=histogram[i];
 		 */
@@ -555,8 +965,89 @@ public class ImageFilter {
 		}
 	}
 	
+	/**
+	 * 将二值图片还原为像素图片，此后的操作以像素图片为准
+	 */
+	private void unpack() {
+		if (binary == null) return;
+		image = pool != null ? binary.toImage(pool.image(slot, binary.width, binary.height)) : binary.toImage();
+		binary = null;
+		gray = false;
+	}
+	
+	/**
+	 * image的像素数据
+	 * 
+	 * <p>image总是扫描行连续的TYPE_INT_RGB图片或它的子图，像素按行存放在DataBufferInt中</p>
+	 */
+	private static class Pixels {
+		
+		final int[] data;
+		
+		final int offset;
+		
+		final int scanline;
+		
+		Pixels(BufferedImage image) {
+			WritableRaster raster = image.getRaster();
+			DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+			data = buffer.getData();
+			scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			offset = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+					- raster.getSampleModelTranslateX();
+		}
+		
+		/**
+		 * 第y行第x列像素在data中的下标
+		 */
+		int index(int x, int y) {
+			return offset + y * scanline + x;
+		}
+	}
+	
 	public BufferedImage render() {
+		if (binary != null) return binary.toImage();
+		if (pool != null) {
+			BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+			copy(image, copy);
+			return copy;
+		}
 		return image;
 	}
 	
+	/**
+	 * 输出图片，使用线程缓冲时输出到缓冲中
+	 * 
+	 * <p>结果只在同一线程下一次使用缓冲前有效</p>
+	 * @return 图片
+	 */
+	BufferedImage renderPooled() {
+		if (pool == null) return render();
+		if (binary != null) return binary.toImage(pool.image(slot, binary.width, binary.height));
+		return image;
+	}
+	
+	/**
+	 * 以二值图片替换当前图片，不复制
+	 * 
+	 * @param binary 二值图片，之后由当前Filter修改
+	 * @return 当前Filter对象
+	 */
+	ImageFilter replace(BinaryImage binary) {
+		this.binary = binary;
+		this.gray = false;
+		return this;
+	}
+	
+	/**
+	 * 输出二值图片
+	 * 
+	 * <p>未二值化时，颜色等于前景色的像素视为前景</p>
+	 * @return 二值图片
+	 */
+	public BinaryImage renderBinary() {
+		if (binary != null) return binary;
+		return BinaryImage.of(image);
+	}
+	
 }
@@ -1,7 +1,11 @@
 package org.tafia.captcha;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -13,11 +17,6 @@ import java.util.List;
  */
 public class ImageInciser {
 	
-	/**
-	 * 前景色
-	 */
-	private static final int FOREGROUND_COLOR = 0xFF << 24;
-	
 	/**
 	 * 背景色
 	 */
@@ -25,6 +24,11 @@ public class ImageInciser {
 	
 	
 	private BufferedImage image;
+	
+	/**
+	 * 前景色像素的二值图片，由image创建时延迟生成
+	 */
+	private BinaryImage binary;
 
 	/**
 	 * 创建一个image的切割器
@@ -35,36 +39,164 @@ public class ImageInciser {
 		this.image = image;
 	}
 	
+	/**
+	 * 创建一个二值图片的切割器
+	 * 
+	 * @param binary 被切割的二值图片
+	 */
+	public ImageInciser(BinaryImage binary) {
+		this.binary = binary;
+	}
+	
 	/**
 	 * 将图片平均切割为num个小图片
 	 * 
-	 * <p>字符间使用5pix宽的像素填充</p>
+	 * <p>字符间使用5pix宽的像素填充。每行按字符整段复制，TYPE_INT_RGB图片直接在DataBufferInt上System.arraycopy，
+	 * 其它类型按行getRGB</p>
 	 * @param num 切割的数量
 	 */
 	public BufferedImage fixedIncise(int num) {
+		if (image == null) return fixedInciseBinary(num).toImage();
 		image = trim(0, 0, image.getWidth(), image.getHeight());
+		binary = null;
 		int width = image.getWidth();
 		int height = image.getHeight();
 		if (width < num) return image;
-		BufferedImage newImage = new BufferedImage(width+num*5+5, height, BufferedImage.TYPE_INT_RGB);
+		int newWidth = width+num*5+5;
 		int step = width / num;
-		for (int i = 0, l = 0; i < width; i++,l++) {
-			if (i % step == 0) {
-				for (int r = 0; r < 5; r++) {
-					for (int s = 0; s < height; s++) {
-						newImage.setRGB(l+r, s, BACKGROUND_COLOR);
-					}
-				}
+		checkGutters(width, step, newWidth);
+		BufferedImage newImage = new BufferedImage(newWidth, height, BufferedImage.TYPE_INT_RGB);
+		int[] target = ((DataBufferInt) newImage.getRaster().getDataBuffer()).getData();
+		WritableRaster raster = image.getRaster();
+		int[] data;
+		int offset;
+		int scanline;
+		if (image.getType() == BufferedImage.TYPE_INT_RGB
+				&& raster.getDataBuffer() instanceof DataBufferInt
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+			DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+			data = buffer.getData();
+			scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			offset = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+					- raster.getSampleModelTranslateX();
+		} else {
+			data = new int[width];
+			scanline = 0;
+			offset = 0;
+		}
+		for (int y = 0; y < height; y++) {
+			int index = offset + y * scanline;
+			if (scanline == 0) image.getRGB(0, y, width, 1, data, 0, width);
+			int base = y * newWidth;
+			int l = 0;
+			for (int i = 0; i < width; i += step) {
+				Arrays.fill(target, base + l, base + l + 5, BACKGROUND_COLOR);
 				l += 5;
-			}
-			for (int j = 0; j < height; j++) {
-				newImage.setRGB(l, j, image.getRGB(i, j));
+				int length = Math.min(step, width - i);
+				System.arraycopy(data, index + i, target, base + l, length);
+				l += length;
 			}
 		}
 		image = newImage;
 		return image;
 	}
 	
+	/**
+	 * 将二值图片平均切割为num个小图片，结果与fixedIncise相同
+	 * 
+	 * <p>每行按字符整段移位复制，一次处理64位</p>
+	 * @param num 切割的数量
+	 * @return 切割后的二值图片，不复制，修改会影响切割器之后的操作
+	 */
+	BinaryImage fixedInciseBinary(int num) {
+		BinaryImage binary = binary();
+		int[] bounds = bounds(0, 0, binary.width, binary.height);
+		binary = binary.crop(bounds[0], bounds[1], bounds[2], bounds[3]);
+		this.binary = binary;
+		int width = binary.width;
+		int height = binary.height;
+		if (width < num) return binary;
+		BinaryImage newBinary = new BinaryImage(width+num*5+5, height);
+		int step = width / num;
+		checkGutters(width, step, newBinary.width);
+		int gutters = (width + step - 1) / step;
+		for (int y = 0; y < height; y++) {
+			int l = 0;
+			for (int i = 0; i < width; i += step) {
+				l += 5;
+				int length = Math.min(step, width - i);
+				binary.copyRow(i, y, length, newBinary, l, y);
+				l += length;
+			}
+			/*
+			 * 与fixedIncise一致，未写入的列保持新图片的初始黑色
+			 */
+			newBinary.fillRow(width + gutters * 5, newBinary.width, y);
+		}
+		this.binary = newBinary;
+		return newBinary;
+	}
+	
+	/**
+	 * 每段字符前的填充列放不下时抛出与setRGB越界相同的异常，width不能被num整除时最多多出一段
+	 */
+	private static void checkGutters(int width, int step, int newWidth) {
+		int gutters = (width + step - 1) / step;
+		if (width + gutters * 5 > newWidth) throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+	}
+	
+	/**
+	 * 将图片裁掉空白后平均分为num个字符图片
+	 * 
+	 * <p>与fixedIncise的切割位置相同，但不插入填充列，多余的列并入最后一个字符。
+	 * 返回的图片是裁剪后图片的子图，共用同一份像素数据，不复制，适合逐个字符识别或分类。
+	 * 由二值图片创建的切割器先转换一次图片</p>
+	 * @param num 字符数量
+	 * @return 字符图片，裁剪后宽度小于num时只有一个
+	 */
+	public List<BufferedImage> fixedGlyphs(int num) {
+		BufferedImage trimmed = trim(0, 0, image == null ? binary.width : image.getWidth(),
+				image == null ? binary.height : image.getHeight());
+		int width = trimmed.getWidth();
+		int height = trimmed.getHeight();
+		List<BufferedImage> list = new ArrayList<>(Math.max(num, 1));
+		if (num <= 1 || width < num) {
+			list.add(trimmed);
+			return list;
+		}
+		int step = width / num;
+		for (int k = 0; k < num; k++) {
+			int left = k * step;
+			int right = k == num - 1 ? width : left + step;
+			list.add(trimmed.getSubimage(left, 0, right - left, height));
+		}
+		return list;
+	}
+	
+	/**
+	 * 将二值图片裁掉空白后平均分为num个字符，与fixedGlyphs的位置相同
+	 * 
+	 * @param num 字符数量
+	 * @return 字符二值图片
+	 */
+	List<BinaryImage> fixedGlyphsBinary(int num) {
+		BinaryImage binary = binary();
+		int[] bounds = bounds(0, 0, binary.width, binary.height);
+		List<BinaryImage> list = new ArrayList<>(Math.max(num, 1));
+		int width = bounds[2];
+		if (num <= 1 || width < num) {
+			list.add(binary.crop(bounds[0], bounds[1], bounds[2], bounds[3]));
+			return list;
+		}
+		int step = width / num;
+		for (int k = 0; k < num; k++) {
+			int left = k * step;
+			int right = k == num - 1 ? width : left + step;
+			list.add(binary.crop(bounds[0] + left, bounds[1], right - left, bounds[3]));
+		}
+		return list;
+	}
+	
 	/**
 	 * 扫线法切割图片
 	 * 
@@ -72,15 +204,11 @@ public class ImageInciser {
 	 * 当集合大小为1时，则图片无法切割为更小的图片
 	 */
 	public List<BufferedImage> blankInterval() {
-		int width = image.getWidth();
-		int height = image.getHeight();
+		BinaryImage binary = binary();
+		int width = binary.width;
+		int height = binary.height;
 		//计算水平灰度直方图
-		int[] projection = new int[width];
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (image.getRGB(x, y) == FOREGROUND_COLOR) projection[x]++;
-			}
-		}
+		int[] projection = projection(binary);
 		List<BufferedImage> list = new ArrayList<>();
 		int i = 0;
 		while (i < width) {
@@ -90,7 +218,7 @@ public class ImageInciser {
 			while (i < width && projection[i] != 0) i++;
 			int right = i;
 			//宽度或高度小于11像素的截取的图片会被忽略
-			BufferedImage subImage = trim(left, right, right-left, height);
+			BufferedImage subImage = trim(left, 0, right-left, height);
 			if (subImage.getWidth() < 11 || subImage.getHeight() < 11) continue;
 			list.add(subImage);
 		}
@@ -98,43 +226,235 @@ public class ImageInciser {
 		
 	}
 	
-	public BufferedImage trim(int x, int y, int width, int height) {
-		int left = x;
-		leftLabel :
-		for (int i = x; i < x + width; i++) {
-			for (int j = y; j < y + height; j++) {
-				if (image.getRGB(i, j) == FOREGROUND_COLOR) break leftLabel;
+	/**
+	 * 按字符切割图片，用于逐字识别
+	 * 
+	 * <p>与blankInterval一样按列投影的空白切分，但保留窄字符（如1、i），
+	 * 只忽略宽和高都不足最高字符三分之一的噪点，字符上下被空白行隔开的零星像素不计入字符范围。指定字符数且切分结果少于字符数时，
+	 * 认为有字符粘连，反复在最宽的一段中部投影最小的列切开，直到达到字符数</p>
+	 * @param chars 字符数，0表示不限定
+	 * @return 按从左到右排列的字符图片
+	 */
+	public List<BufferedImage> segment(int chars) {
+		List<BufferedImage> list = new ArrayList<>();
+		for (BinaryImage glyph : segmentBinary(chars)) list.add(glyph.toImage());
+		return list;
+	}
+	
+	/**
+	 * 按字符切割二值图片，结果与segment相同
+	 * 
+	 * @param chars 字符数，0表示不限定
+	 * @return 按从左到右排列的字符二值图片
+	 */
+	List<BinaryImage> segmentBinary(int chars) {
+		BinaryImage binary = binary();
+		int width = binary.width;
+		int[] projection = projection(binary);
+		/*
+		 * 每段为{left, right}，right不含
+		 */
+		List<int[]> runs = new ArrayList<>();
+		int i = 0;
+		while (i < width) {
+			while (i < width && projection[i] == 0) i++;
+			if (i == width) break;
+			int left = i;
+			while (i < width && projection[i] != 0) i++;
+			runs.add(new int[] {left, i});
+		}
+		List<int[]> boxes = new ArrayList<>();
+		int tallest = 0;
+		for (int[] run : runs) {
+			int[] box = glyphBounds(binary, run[0], run[1]);
+			boxes.add(box);
+			tallest = Math.max(tallest, box[3]);
+		}
+		for (int k = boxes.size() - 1; k >= 0; k--) {
+			int[] box = boxes.get(k);
+			if (box[2] * 3 < tallest && box[3] * 3 < tallest) {
+				runs.remove(k);
+				boxes.remove(k);
 			}
-			left++;
 		}
-		int right = x + width - 1;
-		rightLabel :
-		for (int i = x + width - 1; i > left; i--) {
-			for (int j = y; j < y + height; j++) {
-				if (image.getRGB(i, j) == FOREGROUND_COLOR) break rightLabel;
+		while (chars > 0 && runs.size() < chars) {
+			int widest = -1;
+			for (int k = 0; k < runs.size(); k++) {
+				int w = runs.get(k)[1] - runs.get(k)[0];
+				if (w >= 2 && (widest < 0 || w > runs.get(widest)[1] - runs.get(widest)[0])) widest = k;
 			}
-			right--;
+			if (widest < 0) break;
+			int[] run = runs.get(widest);
+			int w = run[1] - run[0];
+			int cut = run[0] + w / 2;
+			for (int x = run[0] + w / 4; x < run[1] - w / 4; x++) {
+				if (projection[x] < projection[cut]) cut = x;
+			}
+			if (cut == run[0]) cut++;
+			runs.set(widest, new int[] {run[0], cut});
+			runs.add(widest + 1, new int[] {cut, run[1]});
+			boxes.set(widest, glyphBounds(binary, run[0], cut));
+			boxes.add(widest + 1, glyphBounds(binary, cut, run[1]));
+		}
+		List<BinaryImage> list = new ArrayList<>(boxes.size());
+		for (int[] box : boxes) list.add(binary.crop(box[0], box[1], box[2], box[3]));
+		return list;
+	}
+	
+	/**
+	 * 一段列中字符的外接矩形
+	 * 
+	 * <p>按空白行将这段分为若干横条，像素数不足整段二十分之一的横条视为噪点，不计入外接矩形</p>
+	 * @param left 起始列
+	 * @param right 结束列，不含
+	 * @return {left, top, width, height}
+	 */
+	private int[] glyphBounds(BinaryImage binary, int left, int right) {
+		int height = binary.height;
+		int[] rows = new int[height];
+		int total = 0;
+		for (int y = 0; y < height; y++) {
+			rows[y] = count(binary.words, y * binary.stride, left, right);
+			total += rows[y];
+		}
+		int top = -1;
+		int bottom = -1;
+		int y = 0;
+		while (y < height) {
+			while (y < height && rows[y] == 0) y++;
+			if (y == height) break;
+			int start = y;
+			int pixels = 0;
+			while (y < height && rows[y] != 0) pixels += rows[y++];
+			if (pixels * 20 < total) continue;
+			if (top < 0) top = start;
+			bottom = y;
+		}
+		if (top < 0) return bounds(left, 0, right - left, height);
+		return bounds(left, top, right - left, bottom - top);
+	}
+	
+	/**
+	 * 行内[from, to)范围内置位的列数
+	 */
+	private static int count(long[] words, int base, int from, int to) {
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		int count = 0;
+		for (int i = first; i <= last; i++) {
+			long word = words[base + i];
+			if (i == first) word &= -1L << from;
+			if (i == last) word &= -1L >>> (63 - ((to - 1) & 63));
+			count += Long.bitCount(word);
 		}
-		int top = y;
-		topLabel :
-		for (int i = y; i < y + height; i++) {
-			for (int j = x; j < x + width; j++) {
-				if (image.getRGB(j, i) == FOREGROUND_COLOR) break topLabel;
+		return count;
+	}
+	
+	/**
+	 * 每列的前景像素数
+	 */
+	private static int[] projection(BinaryImage binary) {
+		int[] projection = new int[binary.width];
+		for (int y = 0; y < binary.height; y++) {
+			int base = y * binary.stride;
+			for (int i = 0; i < binary.stride; i++) {
+				long word = binary.words[base + i];
+				while (word != 0) {
+					projection[(i << 6) + Long.numberOfTrailingZeros(word)]++;
+					word &= word - 1;
+				}
 			}
-			top++;
 		}
-		int bottom = y + height - 1;
-		bottomLabel :
-		for (int i = y + height - 1; i > top; i--) {
-			for (int j = x; j < x + width; j++) {
-				if (image.getRGB(j, i) == FOREGROUND_COLOR) break bottomLabel;
+		return projection;
+	}
+	
+	public BufferedImage trim(int x, int y, int width, int height) {
+		int[] bounds = bounds(x, y, width, height);
+		if (image == null) return binary.crop(bounds[0], bounds[1], bounds[2], bounds[3]).toImage();
+		return image.getSubimage(bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+	
+	/**
+	 * 计算区域内前景色像素的最小外接矩形
+	 * 
+	 * <p>区域内没有前景色时，返回区域右下角的单个像素</p>
+	 * @return {left, top, width, height}
+	 */
+	private int[] bounds(int x, int y, int width, int height) {
+		BinaryImage binary = binary();
+		/*
+		 * 只扫描一遍区域覆盖的long：各行按位或得到含有前景色的列，同时记下含有前景色的首末行
+		 */
+		int stride = binary.stride;
+		int first = x >>> 6;
+		int last = (x + width - 1) >>> 6;
+		long firstMask = -1L << x;
+		long lastMask = -1L >>> (63 - ((x + width - 1) & 63));
+		long[] columns = new long[stride];
+		int top = -1;
+		int bottom = -1;
+		for (int j = y; j < y + height; j++) {
+			int base = j * stride;
+			long any = 0;
+			for (int i = first; i <= last; i++) {
+				long word = binary.words[base + i];
+				if (i == first) word &= firstMask;
+				if (i == last) word &= lastMask;
+				columns[i] |= word;
+				any |= word;
+			}
+			if (any != 0) {
+				if (top < 0) top = j;
+				bottom = j;
 			}
-			bottom--;
 		}
-		if (left == x + width) left--;
-		if (top == y + height) top--;
-		return image.getSubimage(left, top, right-left+1, bottom-top+1);
+		if (top < 0) return new int[] {x + width - 1, y + height - 1, 1, 1};
+		int left = nextSetBit(columns, 0, x, x + width);
+		int right = previousSetBit(columns, x, x + width);
+		return new int[] {left, top, right-left+1, bottom-top+1};
 	}
 	
+	/**
+	 * 查找行内[from, to)范围内第一个置位的列
+	 * 
+	 * @param words 位数组
+	 * @param base 行在位数组中的起始下标
+	 * @return 列号，没有则返回-1
+	 */
+	private static int nextSetBit(long[] words, int base, int from, int to) {
+		if (from >= to) return -1;
+		int last = (to - 1) >>> 6;
+		int i = from >>> 6;
+		long word = words[base + i] & (-1L << from);
+		while (true) {
+			if (i == last) word &= -1L >>> (63 - ((to - 1) & 63));
+			if (word != 0) return (i << 6) + Long.numberOfTrailingZeros(word);
+			if (i == last) return -1;
+			word = words[base + ++i];
+		}
+	}
+	
+	/**
+	 * 查找[from, to)范围内最后一个置位的列
+	 * 
+	 * @return 列号，没有则返回-1
+	 */
+	private static int previousSetBit(long[] row, int from, int to) {
+		if (from >= to) return -1;
+		int first = from >>> 6;
+		int i = (to - 1) >>> 6;
+		long word = row[i] & (-1L >>> (63 - ((to - 1) & 63)));
+		while (true) {
+			if (i == first) word &= -1L << from;
+			if (word != 0) return (i << 6) + 63 - Long.numberOfLeadingZeros(word);
+			if (i == first) return -1;
+			word = row[--i];
+		}
+	}
+	
+	private BinaryImage binary() {
+		if (binary == null) binary = BinaryImage.of(image);
+		return binary;
+	}
 	
 }
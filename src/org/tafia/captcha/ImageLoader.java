@@ -1,32 +1,262 @@
 package org.tafia.captcha;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
 
 /**
  * 图片加载器
  * 
+ * <p>内存中的图片数据按文件头直接确定格式和ImageReader，不逐个探测已注册的读取器，
+ * 读取时不使用ImageIO的磁盘缓存，ImageReader按线程复用。
+ * loadGray系列方法对JPEG只解码亮度分量，得到TYPE_BYTE_GRAY图片，
+ * 省去色度分量的反量化、IDCT、上采样和颜色转换</p>
+ * 
  * @author Dason
  * @date 2016年10月8日
  *
  */
 public class ImageLoader {
 
+	/**
+	 * 每个线程按格式缓存的ImageReader
+	 */
+	private static final ThreadLocal<Map<String, ImageReader>> READERS = new ThreadLocal<Map<String, ImageReader>>() {
+		@Override
+		protected Map<String, ImageReader> initialValue() {
+			return new HashMap<>();
+		}
+	};
+
 	public static BufferedImage load(String path) throws IOException{
 		return load(new File(path));
 	}
 	
 	public static BufferedImage load(File imageFile) throws IOException{
-		return ImageIO.read(imageFile);
+		return load(imageFile.toPath());
+	}
+	
+	public static BufferedImage load(Path path) throws IOException{
+		return load(Files.readAllBytes(path));
 	}
 	
 	public static BufferedImage load(URL url) throws IOException{
 		return ImageIO.read(url);
 	}
 	
+	/**
+	 * 从数据流加载图片，读取到数据流结尾，不关闭数据流
+	 */
+	public static BufferedImage load(InputStream in) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		return load(out.toByteArray());
+	}
+	
+	public static BufferedImage load(byte[] data) throws IOException{
+		return load(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * 从缓冲区的position到limit之间加载图片，不改变缓冲区的position
+	 * 
+	 * <p>可以是FileChannel.map得到的内存映射缓冲区</p>
+	 * @param data 图片数据
+	 * @return 图片，无法识别格式时返回null
+	 */
+	public static BufferedImage load(ByteBuffer data) throws IOException{
+		return read(data, false);
+	}
+	
+	public static BufferedImage loadGray(String path) throws IOException{
+		return loadGray(new File(path));
+	}
+	
+	public static BufferedImage loadGray(File imageFile) throws IOException{
+		return loadGray(imageFile.toPath());
+	}
+	
+	public static BufferedImage loadGray(Path path) throws IOException{
+		return loadGray(Files.readAllBytes(path));
+	}
+	
+	/**
+	 * 从数据流加载灰度图片，读取到数据流结尾，不关闭数据流
+	 */
+	public static BufferedImage loadGray(InputStream in) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		return loadGray(out.toByteArray());
+	}
+	
+	public static BufferedImage loadGray(byte[] data) throws IOException{
+		return loadGray(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * 从缓冲区的position到limit之间加载灰度图片，不改变缓冲区的position
+	 * 
+	 * <p>YCbCr和灰度JPEG直接取亮度分量Y作为灰度，得到TYPE_BYTE_GRAY图片。
+	 * Y由编码器按0.299R+0.587G+0.114B计算并有损压缩，与解码为RGB后再灰度化的结果略有差别。
+	 * CMYK等不能输出灰度的JPEG以及其它格式按原格式返回</p>
+	 * @param data 图片数据
+	 * @return 图片，无法识别格式时返回null
+	 */
+	public static BufferedImage loadGray(ByteBuffer data) throws IOException{
+		return read(data, true);
+	}
+	
+	/**
+	 * @param gray 是否只解码JPEG的亮度分量
+	 */
+	private static BufferedImage read(ByteBuffer data, boolean gray) throws IOException{
+		data = data.slice();
+		String format = format(data);
+		ImageReader reader = format == null ? null : reader(format);
+		ImageInputStream in = new ByteBufferImageInputStream(data);
+		if (reader == null) {
+			return ImageIO.read(in);
+		}
+		try {
+			reader.setInput(in, true, true);
+			ImageReadParam param = reader.getDefaultReadParam();
+			if (gray && "jpeg".equals(format)) {
+				ImageTypeSpecifier type = grayType(reader);
+				if (type != null) param.setDestinationType(type);
+			}
+			BufferedImage image = reader.read(0, param);
+			reader.setInput(null);
+			return image;
+		} catch (IOException | RuntimeException e) {
+			/*
+			 * 读取失败后的ImageReader状态不确定，不再复用
+			 */
+			READERS.get().remove(format);
+			reader.dispose();
+			throw e;
+		}
+	}
+	
+	/**
+	 * 按文件头判断图片格式
+	 * 
+	 * @return 格式名称，无法判断时返回null
+	 */
+	private static String format(ByteBuffer data) {
+		int length = data.remaining();
+		if (length < 4) return null;
+		int b0 = data.get(0) & 0xFF;
+		int b1 = data.get(1) & 0xFF;
+		int b2 = data.get(2) & 0xFF;
+		int b3 = data.get(3) & 0xFF;
+		if (b0 == 0xFF && b1 == 0xD8) return "jpeg";
+		if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') return "png";
+		if (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8') return "gif";
+		if (b0 == 'B' && b1 == 'M') return "bmp";
+		if ((b0 == 'I' && b1 == 'I' && b2 == 42 && b3 == 0) || (b0 == 'M' && b1 == 'M' && b2 == 0 && b3 == 42)) return "tiff";
+		return null;
+	}
+	
+	/**
+	 * ImageReader可以输出的8位灰度类型
+	 * 
+	 * <p>JPEG解码库输出灰度时只解码亮度分量，色度分量整个跳过</p>
+	 * @return 灰度类型，不能输出灰度时返回null
+	 */
+	private static ImageTypeSpecifier grayType(ImageReader reader) throws IOException {
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		while (types.hasNext()) {
+			ImageTypeSpecifier type = types.next();
+			if (type.getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY) return type;
+		}
+		return null;
+	}
+	
+	/**
+	 * 当前线程的指定格式ImageReader
+	 * 
+	 * @return ImageReader，没有注册该格式时返回null
+	 */
+	private static ImageReader reader(String format) {
+		Map<String, ImageReader> readers = READERS.get();
+		ImageReader reader = readers.get(format);
+		if (reader == null) {
+			Iterator<ImageReader> iterator = ImageIO.getImageReadersByFormatName(format);
+			if (!iterator.hasNext()) return null;
+			reader = iterator.next();
+			readers.put(format, reader);
+		}
+		return reader;
+	}
+	
+	/**
+	 * 直接读取ByteBuffer的ImageInputStream，数据已在内存中，不需要缓存
+	 */
+	private static class ByteBufferImageInputStream extends ImageInputStreamImpl {
+		
+		private final ByteBuffer data;
+		
+		ByteBufferImageInputStream(ByteBuffer data) {
+			this.data = data;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if (streamPos >= data.limit()) return -1;
+			return data.get((int) streamPos++) & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkClosed();
+			if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+			bitOffset = 0;
+			if (len == 0) return 0;
+			if (streamPos >= data.limit()) return -1;
+			int n = (int) Math.min(len, data.limit() - streamPos);
+			ByteBuffer view = data.duplicate();
+			view.position((int) streamPos);
+			view.get(b, off, n);
+			streamPos += n;
+			return n;
+		}
+		
+		@Override
+		public long length() {
+			return data.limit();
+		}
+		
+		@Override
+		public boolean isCached() {
+			return true;
+		}
+		
+		@Override
+		public boolean isCachedMemory() {
+			return true;
+		}
+	}
 	
 }
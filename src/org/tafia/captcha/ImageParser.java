@@ -1,12 +1,9 @@
 package org.tafia.captcha;
 
 import java.awt.image.BufferedImage;
-import net.sourceforge.pinyin4j.PinyinHelper;
-import net.sourceforge.pinyin4j.format.HanyuPinyinCaseType;
-import net.sourceforge.pinyin4j.format.HanyuPinyinOutputFormat;
-import net.sourceforge.pinyin4j.format.HanyuPinyinToneType;
-import net.sourceforge.pinyin4j.format.exception.BadHanyuPinyinOutputFormatCombination;
-import net.sourceforge.tess4j.Tesseract;
+import java.util.List;
+
+import net.sourceforge.tess4j.ITessAPI.TessPageSegMode;
 import net.sourceforge.tess4j.TesseractException;
 
 /**
@@ -18,6 +15,11 @@ import net.sourceforge.tess4j.TesseractException;
  */
 public class ImageParser {
 
+	/**
+	 * 识别失败时的返回内容
+	 */
+	static final String FAILURE = "内容识别失败";
+
 	/**
 	 * 符号映射
 	 */
@@ -58,6 +60,23 @@ public class ImageParser {
 			{"首字母", "{#}"},
 	};
 	
+	/**
+	 * 按symbolMap的顺序编译的替换器
+	 */
+	private static final Rewriter SYMBOL_REWRITER = new Rewriter(symbolMap);
+	
+	/**
+	 * 预热默认引擎池，提前加载中文和英文语言数据，并生成拼音表
+	 * 
+	 * @param count 每种语言的引擎数量
+	 */
+	public static void warmUp(int count) throws TesseractException {
+		OcrEnginePool pool = OcrEnginePool.getDefault();
+		pool.warmUp("eng", count);
+		pool.warmUp("chi_sim", count);
+		PinyinTable.load();
+	}
+	
 	/**
 	 * 图片识别原文，包含中文
 	 * @param image 字符图片
@@ -74,16 +93,43 @@ public class ImageParser {
 	 * @return 图片内容
 	 */
 	public static String origin(BufferedImage image, boolean chiness) {
-		Tesseract instance = new Tesseract();
-		if (chiness) instance.setLanguage("chi_sim");
-		else instance.setLanguage("eng");
 		try {
-			return instance.doOCR(image).trim().replace(" ", "");
+			return OcrEnginePool.getDefault().recognize(image, language(chiness)).trim().replace(" ", "");
 		} catch (TesseractException e) {
-			return "内容识别失败";
+			return FAILURE;
 		}
 	}
 	
+	/**
+	 * 逐字识别并按顺序拼接
+	 * 
+	 * <p>每张图片只有一个字符，使用单字符页面分割模式并行识别，未识别出字符的图片被忽略</p>
+	 * @param glyphs 按顺序排列的字符图片
+	 * @param chiness 是否包含中文
+	 * @return 图片内容
+	 */
+	public static String origin(List<BufferedImage> glyphs, boolean chiness) {
+		try {
+			List<String> results = OcrEnginePool.getDefault().recognizeAll(glyphs, language(chiness),
+					TessPageSegMode.PSM_SINGLE_CHAR);
+			StringBuilder sb = new StringBuilder();
+			for (String result : results) sb.append(result.trim().replace(" ", ""));
+			return sb.toString();
+		} catch (TesseractException e) {
+			return FAILURE;
+		}
+	}
+	
+	/**
+	 * 识别语言
+	 * 
+	 * @param chiness 是否包含中文
+	 * @return Tesseract语言名称
+	 */
+	static String language(boolean chiness) {
+		return chiness ? "chi_sim" : "eng";
+	}
+	
 	/**
 	 * 语义分析
 	 * 
@@ -92,12 +138,7 @@ public class ImageParser {
 	 * @return 结果
 	 */
 	public static String semantic(String content) {
-		for (String[] pair : symbolMap) {
-			String key = pair[0];
-			String value = pair[1];
-			if (content.contains(key)) content = content.replace(key, value);
-		}
-		return compute(content);
+		return compute(SYMBOL_REWRITER.rewrite(content));
 	}
 	
 	/**
@@ -111,25 +152,11 @@ public class ImageParser {
 			boolean capital = express.contains("{#}");
 			int index = express.indexOf("{$}");
 			String target = express.substring(0, index);
-			HanyuPinyinOutputFormat format = new HanyuPinyinOutputFormat();
-			format.setCaseType(HanyuPinyinCaseType.LOWERCASE);
-			format.setToneType(HanyuPinyinToneType.WITHOUT_TONE);
-			String pinyin = "";
-			try {
-				for (int i = 0; i < target.length(); i++) {
-					char ch = target.charAt(i);
-					
-						String s = PinyinHelper.toHanyuPinyinStringArray(ch, format)[0];
-						if (capital) {
-							pinyin += s.charAt(0);
-						} else {
-							pinyin += s;
-						}
-				}
-			} catch (BadHanyuPinyinOutputFormatCombination e) {
-				pinyin = "获取“"+target+"”的拼音失败";
+			StringBuilder pinyin = new StringBuilder(target.length() * 6);
+			if (!PinyinTable.append(target, capital, pinyin)) {
+				return "获取“"+target+"”的拼音失败";
 			}
-			return pinyin;
+			return pinyin.toString();
 		}
 		String[] ops = express.split("\\+|-|\\*|\\\\", 3);
 		if (ops.length != 2) return "错误的表达式";
@@ -0,0 +1,114 @@
+package org.tafia.captcha;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁耗时直方图
+ * 
+ * <p>按对数线性分桶记录纳秒耗时，每个2的幂区间再均分为16个桶，
+ * 分位数的相对误差不超过1/16。记录只做原子加，多线程并发记录不加锁</p>
+ * 
+ */
+public class LatencyHistogram {
+
+	/**
+	 * 每个2的幂区间的子桶数量为2^SUB_BITS
+	 */
+	private static final int SUB_BITS = 4;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * 记录一次耗时
+	 * 
+	 * @param nanos 耗时，单位纳秒
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		buckets.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get())) {
+			if (max.compareAndSet(current, nanos)) break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * 最大耗时，单位纳秒
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * 平均耗时，单位纳秒
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * 分位数耗时，返回所在桶的上界，且不超过最大耗时
+	 * 
+	 * @param percent 百分位，例如50、99
+	 * @return 耗时，单位纳秒，没有记录时返回0
+	 */
+	public long getPercentile(double percent) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(percent / 100 * total);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * 清空记录，与并发的记录之间不保证原子性
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) buckets.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT) return (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_COUNT) return index;
+		int exp = index / SUB_COUNT + SUB_BITS - 1;
+		long sub = index % SUB_COUNT;
+		return ((SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,363 @@
+package org.tafia.captcha;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.Pointer;
+
+import net.sourceforge.tess4j.ITessAPI.TessBaseAPI;
+import net.sourceforge.tess4j.TessAPI;
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * Tesseract引擎池
+ *
+ * <p>Tesseract.doOCR每次调用都会初始化引擎并重新加载语言数据，
+ * 引擎池直接持有已初始化的TessBaseAPI句柄，按语言和页面分割模式分组复用。
+ * 引擎借出后只由借用线程使用，用完归还</p>
+ */
+public class OcrEnginePool {
+
+	/**
+	 * 默认的语言数据目录，其下的tessdata目录存放语言数据
+	 */
+	public static final String DEFAULT_DATAPATH = "./";
+
+	/**
+	 * 不设置页面分割模式，与Tesseract.doOCR一样使用引擎自身的默认模式
+	 */
+	public static final int DEFAULT_PAGE_SEG_MODE = -1;
+
+	/**
+	 * 等待引擎时检查引擎池是否已关闭的间隔，毫秒
+	 */
+	private static final long WAIT_MILLIS = 100;
+
+	private static volatile OcrEnginePool defaultPool =
+			new OcrEnginePool(DEFAULT_DATAPATH, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * 语言数据目录
+	 */
+	private final String datapath;
+
+	/**
+	 * 每组引擎的最大数量
+	 */
+	private final int size;
+
+	private final Map<String, Group> groups = new ConcurrentHashMap<>();
+
+	/**
+	 * 并行识别使用的线程池，首次使用时创建
+	 */
+	private volatile ExecutorService executor;
+
+	private volatile boolean closed;
+
+	/**
+	 * 创建引擎池
+	 *
+	 * @param datapath 语言数据目录
+	 * @param size 每种语言和分割模式下引擎的最大数量
+	 */
+	public OcrEnginePool(String datapath, int size) {
+		if (size < 1) throw new IllegalArgumentException("引擎数量必须大于0");
+		this.datapath = datapath;
+		this.size = size;
+	}
+
+	/**
+	 * 默认引擎池，ImageParser使用此引擎池识别
+	 */
+	public static OcrEnginePool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * 替换默认引擎池并关闭原引擎池
+	 */
+	public static void setDefault(OcrEnginePool pool) {
+		OcrEnginePool old = defaultPool;
+		defaultPool = pool;
+		if (old != pool) old.shutdown();
+	}
+
+	/**
+	 * 预热，提前创建并初始化引擎
+	 *
+	 * @param language 语言
+	 * @param pageSegMode 页面分割模式，DEFAULT_PAGE_SEG_MODE表示不设置
+	 * @param count 引擎数量，超过引擎池容量的部分被忽略
+	 */
+	public void warmUp(String language, int pageSegMode, int count) throws TesseractException {
+		Group group = group(language, pageSegMode);
+		List<Engine> engines = new ArrayList<>();
+		try {
+			for (int i = 0; i < count; i++) {
+				Engine engine = group.borrow(false);
+				if (engine == null) break;
+				engines.add(engine);
+			}
+		} finally {
+			for (Engine engine : engines) group.giveBack(engine);
+		}
+	}
+
+	/**
+	 * 预热，使用引擎默认的页面分割模式
+	 */
+	public void warmUp(String language, int count) throws TesseractException {
+		warmUp(language, DEFAULT_PAGE_SEG_MODE, count);
+	}
+
+	/**
+	 * 识别图片，使用引擎默认的页面分割模式
+	 */
+	public String recognize(BufferedImage image, String language) throws TesseractException {
+		return recognize(image, language, DEFAULT_PAGE_SEG_MODE);
+	}
+
+	/**
+	 * 借用引擎识别图片，没有空闲引擎且已达到容量时等待其他线程归还
+	 *
+	 * @param image 图片
+	 * @param language 语言
+	 * @param pageSegMode 页面分割模式，DEFAULT_PAGE_SEG_MODE表示不设置
+	 * @return 识别结果
+	 */
+	public String recognize(BufferedImage image, String language, int pageSegMode) throws TesseractException {
+		Group group = group(language, pageSegMode);
+		Engine engine = group.borrow(true);
+		try {
+			return engine.recognize(image);
+		} finally {
+			group.giveBack(engine);
+		}
+	}
+
+	/**
+	 * 并行识别多张图片，各图片分别借用引擎
+	 *
+	 * <p>在引擎池的线程池中执行，线程数与每组引擎的最大数量相同</p>
+	 * @param images 图片
+	 * @param language 语言
+	 * @param pageSegMode 页面分割模式
+	 * @return 与图片顺序相同的识别结果
+	 */
+	public List<String> recognizeAll(List<BufferedImage> images, String language, int pageSegMode)
+			throws TesseractException {
+		ExecutorService executor = executor();
+		List<Future<String>> futures = new ArrayList<>(images.size());
+		try {
+			for (final BufferedImage image : images) {
+				futures.add(executor.submit(() -> recognize(image, language, pageSegMode)));
+			}
+			List<String> results = new ArrayList<>(images.size());
+			for (Future<String> future : futures) results.add(future.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TesseractException("等待识别结果时被中断");
+		} catch (RejectedExecutionException e) {
+			throw new TesseractException("引擎池已关闭");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TesseractException) throw (TesseractException) e.getCause();
+			throw new TesseractException("识别失败", e.getCause());
+		} finally {
+			/*
+			 * 出错时不再识别尚未开始的图片
+			 */
+			for (Future<String> future : futures) future.cancel(false);
+		}
+	}
+
+	private ExecutorService executor() {
+		ExecutorService executor = this.executor;
+		if (executor == null) {
+			synchronized (this) {
+				executor = this.executor;
+				if (executor == null) {
+					executor = Executors.newFixedThreadPool(size, runnable -> {
+						Thread thread = new Thread(runnable, "ocr-engine-pool");
+						thread.setDaemon(true);
+						return thread;
+					});
+					this.executor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * 关闭引擎池，释放所有空闲引擎，借出的引擎在归还时释放。
+	 * 之后借用引擎，包括正在等待的，都抛出TesseractException
+	 */
+	public void shutdown() {
+		closed = true;
+		for (Group group : groups.values()) group.shutdown();
+		synchronized (this) {
+			if (executor != null) executor.shutdown();
+		}
+	}
+
+	private Group group(String language, int pageSegMode) {
+		String key = language + "#" + pageSegMode;
+		Group group = groups.get(key);
+		if (group == null) {
+			group = new Group(language, pageSegMode);
+			Group exist = groups.putIfAbsent(key, group);
+			if (exist != null) group = exist;
+		}
+		return group;
+	}
+
+	/**
+	 * 相同语言和页面分割模式的一组引擎
+	 */
+	private class Group {
+
+		private final String language;
+
+		private final int pageSegMode;
+
+		private final BlockingQueue<Engine> idle = new LinkedBlockingQueue<>();
+
+		/**
+		 * 已创建的引擎数量
+		 */
+		private final AtomicInteger created = new AtomicInteger();
+
+		Group(String language, int pageSegMode) {
+			this.language = language;
+			this.pageSegMode = pageSegMode;
+		}
+
+		/**
+		 * 借用引擎
+		 *
+		 * @param wait 达到容量时是否等待
+		 * @return 引擎，不等待且达到容量时返回null
+		 * @throws TesseractException 引擎池已关闭或创建引擎失败
+		 */
+		Engine borrow(boolean wait) throws TesseractException {
+			if (closed) throw new TesseractException("引擎池已关闭");
+			Engine engine = idle.poll();
+			if (engine != null) return engine;
+			while (true) {
+				int n = created.get();
+				if (n >= size) break;
+				if (created.compareAndSet(n, n + 1)) {
+					try {
+						return new Engine(datapath, language, pageSegMode);
+					} catch (TesseractException | RuntimeException e) {
+						created.decrementAndGet();
+						throw e;
+					}
+				}
+			}
+			if (!wait) return idle.poll();
+			try {
+				while (engine == null) {
+					if (closed) throw new TesseractException("引擎池已关闭");
+					engine = idle.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				return engine;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TesseractException("等待引擎时被中断");
+			}
+		}
+
+		void giveBack(Engine engine) {
+			idle.offer(engine);
+			/*
+			 * 与shutdown同时发生时放回的引擎可能未被释放，再释放一次
+			 */
+			if (closed) shutdown();
+		}
+
+		/**
+		 * 释放空闲引擎
+		 */
+		void shutdown() {
+			Engine engine;
+			while ((engine = idle.poll()) != null) {
+				engine.close();
+				created.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 已初始化的Tesseract引擎，同一时刻只能由一个线程使用
+	 */
+	static class Engine {
+
+		private final TessAPI api = TessAPI.INSTANCE;
+
+		private final TessBaseAPI handle;
+
+		/**
+		 * 传给引擎的像素，图片更大时才重新分配
+		 */
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+
+		Engine(String datapath, String language, int pageSegMode) throws TesseractException {
+			handle = api.TessBaseAPICreate();
+			if (api.TessBaseAPIInit3(handle, datapath, language) != 0) {
+				api.TessBaseAPIDelete(handle);
+				throw new TesseractException("无法加载语言数据" + language);
+			}
+			if (pageSegMode > DEFAULT_PAGE_SEG_MODE) api.TessBaseAPISetPageSegMode(handle, pageSegMode);
+		}
+
+		/**
+		 * 识别图片，图片以24位RGB传入
+		 */
+		String recognize(BufferedImage image) {
+			int width = image.getWidth();
+			int height = image.getHeight();
+			if (buffer.capacity() < width * height * 3) buffer = ByteBuffer.allocateDirect(width * height * 3);
+			buffer.clear();
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				image.getRGB(0, y, width, 1, row, 0, width);
+				for (int x = 0; x < width; x++) {
+					int rgb = row[x];
+					buffer.put((byte) (rgb >> 16));
+					buffer.put((byte) (rgb >> 8));
+					buffer.put((byte) rgb);
+				}
+			}
+			buffer.flip();
+			api.TessBaseAPISetImage(handle, buffer, width, height, 3, width * 3);
+			Pointer text = api.TessBaseAPIGetUTF8Text(handle);
+			try {
+				return text == null ? "" : text.getString(0, "UTF-8");
+			} finally {
+				if (text != null) api.TessDeleteText(text);
+				api.TessBaseAPIClear(handle);
+			}
+		}
+
+		void close() {
+			api.TessBaseAPIEnd(handle);
+			api.TessBaseAPIDelete(handle);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package org.tafia.captcha;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 异步解析线程池
+ *
+ * <p>固定数量的工作线程执行解析，同时进行的解析数量因此有上限。
+ * 已接收未完成的任务不超过工作线程数加队列容量，超出时按接收策略处理：
+ * 拒绝、由提交线程执行或等待一段时间后拒绝。被拒绝的任务返回以RejectedExecutionException异常完成的Future</p>
+ */
+public class ParseExecutor implements ParseExecutorMBean {
+
+	/**
+	 * 队列已满时的接收策略
+	 */
+	public enum Admission {
+		/**
+		 * 立即拒绝
+		 */
+		REJECT,
+		/**
+		 * 由提交线程执行
+		 */
+		CALLER_RUNS,
+		/**
+		 * 等待空位，超时后拒绝
+		 */
+		WAIT
+	}
+
+	public static final String OBJECT_NAME = "org.tafia.captcha:type=ParseExecutor,name=";
+
+	/**
+	 * WAIT策略的默认等待时间
+	 */
+	private static final long DEFAULT_TIMEOUT_SECONDS = 30;
+
+	private static volatile ParseExecutor defaultExecutor;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * 工作线程数加队列容量个许可，任务完成时归还
+	 */
+	private final Semaphore permits;
+
+	private final int workers;
+
+	private final int queueCapacity;
+
+	private final Admission admission;
+
+	private final long timeoutNanos;
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong callerRuns = new AtomicLong();
+
+	/**
+	 * 创建线程池
+	 *
+	 * @param workers 工作线程数，即同时进行的解析数量上限
+	 * @param queueCapacity 排队任务数上限
+	 * @param admission 队列已满时的接收策略
+	 * @param timeout WAIT策略的最长等待时间
+	 * @param unit 时间单位
+	 */
+	public ParseExecutor(int workers, int queueCapacity, Admission admission, long timeout, TimeUnit unit) {
+		if (workers < 1) throw new IllegalArgumentException("线程数必须大于0");
+		if (queueCapacity < 0) throw new IllegalArgumentException("队列容量不能小于0");
+		this.workers = workers;
+		this.queueCapacity = queueCapacity;
+		this.admission = admission;
+		this.timeoutNanos = unit.toNanos(timeout);
+		this.permits = new Semaphore(workers + queueCapacity);
+		final AtomicInteger threads = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, "captcha-parse-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * 创建线程池，WAIT策略等待30秒
+	 */
+	public ParseExecutor(int workers, int queueCapacity, Admission admission) {
+		this(workers, queueCapacity, admission, DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 默认线程池，parseAsync使用此线程池
+	 *
+	 * <p>首次使用时创建，线程数为处理器数量，队列容量为线程数的4倍，队列已满时等待</p>
+	 */
+	public static ParseExecutor getDefault() {
+		ParseExecutor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (ParseExecutor.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					int workers = Runtime.getRuntime().availableProcessors();
+					executor = new ParseExecutor(workers, workers * 4, Admission.WAIT);
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * 替换默认线程池，原线程池执行完已接收的任务后停止
+	 */
+	public static void setDefault(ParseExecutor executor) {
+		ParseExecutor old;
+		synchronized (ParseExecutor.class) {
+			old = defaultExecutor;
+			defaultExecutor = executor;
+		}
+		if (old != null && old != executor) old.shutdown();
+	}
+
+	/**
+	 * 异步解析已加载的图片
+	 */
+	public CompletableFuture<String> parse(CaptchaPipeline pipeline, BufferedImage image) {
+		return submit(() -> pipeline.parse(image));
+	}
+
+	/**
+	 * 异步解析图片文件，读取失败时Future以IOException异常完成
+	 */
+	public CompletableFuture<String> parse(CaptchaPipeline pipeline, Path path) {
+		return submit(() -> pipeline.parse(path));
+	}
+
+	/**
+	 * 提交任务
+	 *
+	 * @param task 任务
+	 * @return 任务完成时完成的Future
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		if (!admit()) {
+			if (admission == Admission.CALLER_RUNS && !executor.isShutdown()) {
+				callerRuns.incrementAndGet();
+				run(task, future, false);
+				return future;
+			}
+			rejected.incrementAndGet();
+			future.completeExceptionally(new RejectedExecutionException("解析队列已满"));
+			return future;
+		}
+		try {
+			executor.execute(() -> run(task, future, true));
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			rejected.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * 按接收策略获取许可
+	 */
+	private boolean admit() {
+		if (permits.tryAcquire()) return true;
+		if (admission != Admission.WAIT) return false;
+		try {
+			return permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * 执行任务，先更新计数和归还许可再完成Future，Future的回调中可以立即提交新任务
+	 * 
+	 * @param release 是否归还许可
+	 */
+	private <T> void run(Callable<T> task, CompletableFuture<T> future, boolean release) {
+		T result = null;
+		Throwable error = null;
+		try {
+			result = task.call();
+		} catch (Throwable e) {
+			error = e;
+		}
+		completed.incrementAndGet();
+		if (release) permits.release();
+		if (error != null) future.completeExceptionally(error);
+		else future.complete(result);
+	}
+
+	/**
+	 * 不再接收任务，已接收的任务继续执行
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * 注册JMX
+	 *
+	 * @param name ObjectName中的name属性
+	 */
+	public void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(OBJECT_NAME + ObjectName.quote(name));
+			if (!server.isRegistered(objectName)) server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException("注册JMX失败", e);
+		}
+	}
+
+	@Override
+	public int getWorkers() {
+		return workers;
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	@Override
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	@Override
+	public int getInFlight() {
+		return workers + queueCapacity - permits.availablePermits();
+	}
+
+	@Override
+	public String getAdmission() {
+		return admission.name();
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	@Override
+	public long getCallerRunsCount() {
+		return callerRuns.get();
+	}
+}
@@ -0,0 +1,37 @@
+package org.tafia.captcha;
+
+/**
+ * 异步解析线程池的JMX接口
+ */
+public interface ParseExecutorMBean {
+
+	int getWorkers();
+
+	int getQueueCapacity();
+
+	/**
+	 * 排队等待执行的任务数
+	 */
+	int getQueueDepth();
+
+	/**
+	 * 正在执行的任务数
+	 */
+	int getActiveCount();
+
+	/**
+	 * 已接收尚未完成的任务数，包括排队和正在执行的
+	 */
+	int getInFlight();
+
+	String getAdmission();
+
+	long getCompletedCount();
+
+	long getRejectedCount();
+
+	/**
+	 * 队列已满时由提交线程执行的任务数
+	 */
+	long getCallerRunsCount();
+}
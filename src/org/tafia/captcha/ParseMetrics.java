@@ -0,0 +1,193 @@
+package org.tafia.captcha;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 解析流程各阶段的耗时统计
+ * 
+ * <p>默认关闭，关闭时start只读取一个volatile标志，不计时也不记录。
+ * 开启后各阶段耗时记录到无锁直方图，可通过本类或JMX（org.tafia.captcha:type=ParseMetrics）查询。
+ * 类加载时即注册JMX，运行中可通过JMX的Enabled属性开启或关闭统计</p>
+ * 
+ */
+public class ParseMetrics implements ParseMetricsMBean {
+
+	/**
+	 * 解析阶段
+	 */
+	public enum Stage {
+		/**
+		 * 加载图片
+		 */
+		LOAD,
+		/**
+		 * 去除边框
+		 */
+		BORDER,
+		/**
+		 * 修复斜体
+		 */
+		ITALIC,
+		/**
+		 * 二值化
+		 */
+		BINARYZATION,
+		/**
+		 * 去噪点
+		 */
+		NOISE,
+		/**
+		 * 去孤立像素块
+		 */
+		BLOCK,
+		/**
+		 * 等距切割
+		 */
+		INCISE,
+		/**
+		 * 保存处理后的图片
+		 */
+		SAVE,
+		/**
+		 * 按字符切割
+		 */
+		SEGMENT,
+		/**
+		 * 文字识别
+		 */
+		OCR,
+		/**
+		 * 语义分析
+		 */
+		SEMANTIC,
+		/**
+		 * 完整解析
+		 */
+		TOTAL
+	}
+
+	public static final String OBJECT_NAME = "org.tafia.captcha:type=ParseMetrics";
+
+	private static final ParseMetrics INSTANCE = new ParseMetrics();
+
+	private static volatile boolean enabled;
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+	static {
+		register();
+	}
+
+	private ParseMetrics() {
+		for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+	}
+
+	public static ParseMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 阶段开始
+	 * 
+	 * @return 开始时间，未开启统计时返回0
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * 阶段结束，记录自start以来的耗时
+	 * 
+	 * @param stage 阶段
+	 * @param start start返回的开始时间
+	 */
+	public static void record(Stage stage, long start) {
+		if (start == 0) return;
+		INSTANCE.histograms[stage.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * 阶段耗时直方图，单位纳秒
+	 */
+	public static LatencyHistogram histogram(Stage stage) {
+		return INSTANCE.histograms[stage.ordinal()];
+	}
+
+	/**
+	 * 开启或关闭统计
+	 */
+	public static void enable(boolean enabled) {
+		ParseMetrics.enabled = enabled;
+	}
+
+	/**
+	 * 注册JMX，失败时只能通过本类查询和开关统计
+	 */
+	private static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) server.registerMBean(INSTANCE, name);
+		} catch (JMException | SecurityException e) {
+			/*
+			 * 不允许注册时不影响统计本身
+			 */
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		enable(enabled);
+	}
+
+	@Override
+	public String[] getStages() {
+		Stage[] stages = Stage.values();
+		String[] names = new String[stages.length];
+		for (int i = 0; i < stages.length; i++) names[i] = stages[i].name();
+		return names;
+	}
+
+	@Override
+	public String[] getReport() {
+		Stage[] stages = Stage.values();
+		String[] report = new String[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			LatencyHistogram histogram = histograms[i];
+			report[i] = String.format(Locale.ROOT, "%s count=%d p50=%dus p99=%dus max=%dus",
+					stages[i].name(), histogram.getCount(), histogram.getPercentile(50) / 1000,
+					histogram.getPercentile(99) / 1000, histogram.getMax() / 1000);
+		}
+		return report;
+	}
+
+	@Override
+	public long getCount(String stage) {
+		return histogram(Stage.valueOf(stage)).getCount();
+	}
+
+	@Override
+	public long getPercentile(String stage, double percent) {
+		return histogram(Stage.valueOf(stage)).getPercentile(percent) / 1000;
+	}
+
+	@Override
+	public long getMax(String stage) {
+		return histogram(Stage.valueOf(stage)).getMax() / 1000;
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) histogram.reset();
+	}
+}
@@ -0,0 +1,32 @@
+package org.tafia.captcha;
+
+/**
+ * 解析流程耗时统计的JMX接口
+ * 
+ * <p>耗时单位为微秒</p>
+ * 
+ */
+public interface ParseMetricsMBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	/**
+	 * 所有阶段名称
+	 */
+	String[] getStages();
+
+	/**
+	 * 每个阶段一行：阶段 次数 p50 p99 最大值
+	 */
+	String[] getReport();
+
+	long getCount(String stage);
+
+	long getPercentile(String stage, double percent);
+
+	long getMax(String stage);
+
+	void reset();
+}
@@ -0,0 +1,131 @@
+package org.tafia.captcha;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sourceforge.pinyin4j.PinyinHelper;
+
+/**
+ * 汉字拼音表
+ *
+ * <p>首次使用时读取pinyin4j自带的汉字拼音数据生成，之后只查表：每个字符对应一个不带声调的小写拼音的编号，
+ * 相同拼音共用一个字符串。结果与pinyin4j按小写、不带声调格式输出的第一个读音相同，ü写作u:。
+ * 直接读取数据文件，不逐字调用PinyinHelper</p>
+ */
+final class PinyinTable {
+
+	/**
+	 * 表覆盖的第一个字符，〇之前没有汉字
+	 */
+	private static final char FIRST = '\u3007';
+
+	private static final char LAST = '\u9FFF';
+
+	/**
+	 * 字符减FIRST为下标，值为拼音编号，0表示没有拼音
+	 */
+	private static final short[] INDEX = new short[LAST - FIRST + 1];
+
+	/**
+	 * pinyin4j的数据文件，每行为“十六进制字符 (读音1,读音2)”，读音末尾的数字为声调
+	 */
+	private static final String RESOURCE = "/pinyindb/unicode_to_hanyu_pinyin.txt";
+
+	/**
+	 * 拼音，下标0不使用
+	 */
+	private static final String[] SYLLABLES;
+
+	static {
+		List<String> syllables = new ArrayList<>();
+		syllables.add(null);
+		Map<String, Integer> ids = new HashMap<>();
+		try (InputStream in = PinyinHelper.class.getResourceAsStream(RESOURCE)) {
+			if (in == null) throw new IOException("找不到" + RESOURCE);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space < 0) continue;
+				int ch = Integer.parseInt(line.substring(0, space), 16);
+				if (ch < FIRST || ch > LAST) continue;
+				String record = line.substring(space + 1).trim();
+				/*
+				 * 与pinyin4j一样，(none0)和格式不对的记录视为没有拼音，重复的字符以最后一行为准
+				 */
+				if (record.equals("(none0)") || !record.startsWith("(") || !record.endsWith(")")) {
+					INDEX[ch - FIRST] = 0;
+					continue;
+				}
+				int end = record.indexOf(',');
+				if (end < 0) end = record.length() - 1;
+				String pinyin = withoutTone(record.substring(1, end));
+				Integer id = ids.get(pinyin);
+				if (id == null) {
+					id = syllables.size();
+					ids.put(pinyin, id);
+					syllables.add(pinyin);
+				}
+				INDEX[ch - FIRST] = (short) (int) id;
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new IllegalStateException("无法读取拼音数据", e);
+		}
+		SYLLABLES = syllables.toArray(new String[syllables.size()]);
+	}
+
+	private PinyinTable() {}
+
+	/**
+	 * 去掉声调数字1到5
+	 */
+	private static String withoutTone(String pinyin) {
+		StringBuilder sb = new StringBuilder(pinyin.length());
+		for (int i = 0; i < pinyin.length(); i++) {
+			char ch = pinyin.charAt(i);
+			if (ch < '1' || ch > '5') sb.append(ch);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 触发生成拼音表
+	 */
+	static void load() {
+	}
+
+	/**
+	 * 不带声调的小写拼音
+	 *
+	 * @return 拼音，没有拼音时返回null
+	 */
+	static String pinyin(char ch) {
+		if (ch < FIRST || ch > LAST) return null;
+		return SYLLABLES[INDEX[ch - FIRST]];
+	}
+
+	/**
+	 * 将每个字符的拼音或拼音首字母追加到out
+	 *
+	 * @param text 汉字
+	 * @param initial 是否只取首字母
+	 * @param out 输出
+	 * @return 全部字符都有拼音时返回true，否则out的内容不完整
+	 */
+	static boolean append(CharSequence text, boolean initial, StringBuilder out) {
+		for (int i = 0; i < text.length(); i++) {
+			String pinyin = pinyin(text.charAt(i));
+			if (pinyin == null) return false;
+			if (initial) out.append(pinyin.charAt(0));
+			else out.append(pinyin);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,73 @@
+package org.tafia.captcha;
+
+/**
+ * 灰度化和二值化的逐像素计算
+ *
+ * <p>灰度用整数乘加代替double运算，二值化每次生成一个long的64个像素，循环中没有分支</p>
+ */
+final class PixelKernels {
+
+	private PixelKernels() {}
+
+	/**
+	 * 灰度值，与(int)(0.299 * r + 0.587 * g + 0.114 * b)相同
+	 *
+	 * <p>v = 299r + 587g + 114b，灰度为v / 1000，除法换为(v / 8) * 33555 >>> 22，在v的取值范围内精确。
+	 * double运算在v是1000的整数倍时可能因舍入误差少1，这时改用double计算，约占千分之一；
+	 * 其余情况与double结果相同，已对全部2^24种颜色验证</p>
+	 * @param rgb 颜色，忽略alpha
+	 * @return 0到255
+	 */
+	static int luma(int rgb) {
+		int red = (rgb >> 16) & 0xFF;
+		int green = (rgb >> 8) & 0xFF;
+		int blue = rgb & 0xFF;
+		int v = 299 * red + 587 * green + 114 * blue;
+		int gray = ((v >>> 3) * 33555) >>> 22;
+		if (gray * 1000 == v) return (int)(0.299 * red + 0.587 * green + 0.114 * blue) & 0xFF;
+		return gray;
+	}
+
+	/**
+	 * 蓝色分量不大于阈值的像素
+	 *
+	 * @param data 像素
+	 * @param index 起始下标
+	 * @param count 像素数，不超过64
+	 * @param threshold 阈值
+	 * @return 第i位对应data[index + i]
+	 */
+	static long threshold(int[] data, int index, int count, int threshold) {
+		int limit = limit(threshold);
+		long word = 0;
+		for (int i = 0; i < count; i++) {
+			word |= (long) (((data[index + i] & 0xFF) - limit) >>> 31) << i;
+		}
+		return word;
+	}
+
+	/**
+	 * 灰度值不大于阈值的像素
+	 *
+	 * @param grays 灰度值
+	 * @param index 起始下标
+	 * @param count 像素数，不超过64
+	 * @param threshold 阈值
+	 * @return 第i位对应grays[index + i]
+	 */
+	static long threshold(byte[] grays, int index, int count, int threshold) {
+		int limit = limit(threshold);
+		long word = 0;
+		for (int i = 0; i < count; i++) {
+			word |= (long) (((grays[index + i] & 0xFF) - limit) >>> 31) << i;
+		}
+		return word;
+	}
+
+	/**
+	 * 不大于threshold即小于limit，限制在0到256之间避免溢出
+	 */
+	private static int limit(int threshold) {
+		return Math.max(0, Math.min(threshold, 255) + 1);
+	}
+}
@@ -0,0 +1,276 @@
+package org.tafia.captcha;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 识别结果缓存
+ *
+ * <p>以二值化处理后的图片为键缓存文字识别结果，命中时不再调用Tesseract。
+ * 每个结果保存图片的全部像素，尺寸相同、识别方式相同且不同的像素数不超过容差的图片才视为同一张，
+ * 有多张时取不同像素最少的。缓存容量有限，超出时淘汰最久未使用的结果</p>
+ *
+ * <p>同一张图片用不同语言、不同模板或切割方式识别的结果不同，识别方式由调用方给出，按equals比较，
+ * 因此一个缓存可以由多个配置共用</p>
+ *
+ * <p>查找使用分段多重索引：图片的long按下标散列分为容差+1段，按每段内容的哈希建索引。
+ * 不同像素数不超过容差时至少有一段完全相同，因此只需比较与查询图片某一段哈希相同的结果，
+ * 不用逐个比较全部结果。各段的long分散在整张图片中，不会因为都落在空白边缘而与大部分图片相同。
+ * 全为背景的段和对应结果超过BUCKET_LIMIT个的段区分不了图片，不参与查找，
+ * 只有这些段相同的近似图片因此可能未命中，但不会命中不同的图片。容差越接近long的个数每段越短，这样的段越多。
+ * 比较在锁外进行，锁内只查索引和更新使用顺序。每个结果占用约宽*高/8字节</p>
+ */
+public class ResultCache {
+
+	/**
+	 * 一段对应的结果超过此数时查找跳过该段
+	 */
+	private static final int BUCKET_LIMIT = 32;
+
+	/**
+	 * 不同像素数容差
+	 */
+	private final int tolerance;
+
+	/**
+	 * 按使用顺序排列的结果，同时作为锁
+	 */
+	private final Map<Cached, Cached> entries;
+
+	/**
+	 * 段哈希到结果的索引
+	 */
+	private final Map<Long, List<Cached>> index = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * 创建缓存
+	 *
+	 * @param capacity 最多缓存的结果数量
+	 * @param tolerance 不同像素数容差，0表示只匹配完全相同的图片
+	 */
+	public ResultCache(final int capacity, int tolerance) {
+		if (capacity < 1) throw new IllegalArgumentException("缓存容量必须大于0");
+		if (tolerance < 0) throw new IllegalArgumentException("容差不能小于0");
+		this.tolerance = tolerance;
+		this.entries = new LinkedHashMap<Cached, Cached>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Cached, Cached> eldest) {
+				if (size() <= capacity) return false;
+				unindex(eldest.getKey());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * 查找识别结果
+	 *
+	 * @param image 二值化处理后的图片
+	 * @param scope 识别方式，如识别语言
+	 * @return 识别结果，未命中时返回null
+	 */
+	public String get(BinaryImage image, Object scope) {
+		Cached query = new Cached(image, scope, null, tolerance);
+		Cached nearest = nearest(query);
+		if (nearest != null) {
+			synchronized (entries) {
+				entries.get(nearest);
+			}
+			hits.incrementAndGet();
+			return nearest.result;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * 缓存识别结果，已有完全相同的图片时替换其结果
+	 *
+	 * @param image 二值化处理后的图片
+	 * @param scope 识别方式，如识别语言
+	 * @param result 识别结果
+	 */
+	public void put(BinaryImage image, Object scope, String result) {
+		Cached entry = new Cached(image, scope, result, tolerance);
+		List<Cached> candidates = candidates(entry);
+		synchronized (entries) {
+			for (Cached candidate : candidates) {
+				if (entry.distance(candidate, 0) == 0 && entries.remove(candidate) != null) unindex(candidate);
+			}
+			for (int i = 0; i < entry.chunks.length; i++) {
+				List<Cached> bucket = index.get(entry.chunks[i]);
+				if (bucket == null) {
+					bucket = new ArrayList<>(1);
+					index.put(entry.chunks[i], bucket);
+				}
+				bucket.add(entry);
+			}
+			entries.put(entry, entry);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			index.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	/**
+	 * 不同像素数不超过容差的结果中最接近的一个
+	 */
+	private Cached nearest(Cached query) {
+		Cached nearest = null;
+		int limit = tolerance;
+		for (Cached candidate : candidates(query)) {
+			int distance = query.distance(candidate, limit);
+			if (distance <= limit) {
+				nearest = candidate;
+				if (distance == 0) break;
+				limit = distance - 1;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * 与query至少有一段哈希相同的结果，不重复
+	 */
+	private List<Cached> candidates(Cached query) {
+		Map<Cached, Boolean> seen = new IdentityHashMap<>();
+		List<Cached> candidates = new ArrayList<>();
+		synchronized (entries) {
+			for (long chunk : query.chunks) {
+				List<Cached> bucket = index.get(chunk);
+				if (bucket == null || bucket.size() > BUCKET_LIMIT) continue;
+				for (Cached entry : bucket) {
+					if (seen.put(entry, Boolean.TRUE) == null) candidates.add(entry);
+				}
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * 从索引中删除，调用时持有entries的锁
+	 */
+	private void unindex(Cached entry) {
+		for (long chunk : entry.chunks) {
+			List<Cached> bucket = index.get(chunk);
+			if (bucket == null) continue;
+			bucket.remove(entry);
+			if (bucket.isEmpty()) index.remove(chunk);
+		}
+	}
+
+	/**
+	 * 缓存的图片和结果，按对象本身比较
+	 */
+	private static class Cached {
+
+		final int width;
+
+		final int height;
+
+		final Object scope;
+
+		/**
+		 * 每行末尾无效位清零后的像素
+		 */
+		final long[] words;
+
+		final String result;
+
+		/**
+		 * 不全为背景的各段的哈希，包含段号、尺寸和识别方式
+		 */
+		final long[] chunks;
+
+		Cached(BinaryImage image, Object scope, String result, int tolerance) {
+			this.width = image.width;
+			this.height = image.height;
+			this.scope = scope;
+			this.result = result;
+			this.words = new long[image.words.length];
+			long tail = image.tailMask();
+			for (int y = 0; y < height; y++) {
+				int base = y * image.stride;
+				System.arraycopy(image.words, base, words, base, image.stride);
+				words[base + image.stride - 1] &= tail;
+			}
+			/*
+			 * 段号只由long的下标决定，尺寸相同的图片分段相同。
+			 * 段数最多为long的个数加1，容差更大时多出的段都是空的
+			 */
+			long seed = ((long) width << 32 | height) * 31 + scope.hashCode();
+			int count = (int) Math.min(tolerance + 1L, words.length + 1L);
+			long[] hashes = new long[count];
+			boolean[] blank = new boolean[count];
+			for (int i = 0; i < count; i++) {
+				hashes[i] = mix(seed + i);
+				blank[i] = true;
+			}
+			for (int i = 0; i < words.length; i++) {
+				int chunk = (int) ((mix(i) >>> 1) % count);
+				hashes[chunk] = mix(hashes[chunk] ^ words[i]);
+				if (words[i] != 0) blank[chunk] = false;
+			}
+			int used = 0;
+			for (int i = 0; i < count; i++) {
+				if (!blank[i]) hashes[used++] = hashes[i];
+			}
+			this.chunks = Arrays.copyOf(hashes, used);
+		}
+
+		/**
+		 * 不同的像素数
+		 *
+		 * @param limit 超过此数时停止计数
+		 * @return 不同的像素数，尺寸或识别方式不同、或超过limit时返回Integer.MAX_VALUE
+		 */
+		int distance(Cached other, int limit) {
+			if (width != other.width || height != other.height || !scope.equals(other.scope)) {
+				return Integer.MAX_VALUE;
+			}
+			int distance = 0;
+			for (int i = 0; i < words.length; i++) {
+				distance += Long.bitCount(words[i] ^ other.words[i]);
+				if (distance > limit) return Integer.MAX_VALUE;
+			}
+			return distance;
+		}
+
+		private static long mix(long value) {
+			value *= 0x9E3779B97F4A7C15L;
+			return value ^ (value >>> 29);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package org.tafia.captcha;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 多模式文本替换
+ *
+ * <p>将按顺序逐条执行的替换规则编译为字典树，从左到右扫描一遍，每个位置取最长的匹配，
+ * 结果与逐条调用String.replace相同。规则之间存在以下依赖时，后面的规则需要在前面规则的结果上匹配，
+ * 编译时从该规则开始分为新的一轮：前面规则的关键字是后面关键字的子串或首尾相接，
+ * 前面规则的替换内容含有后面关键字的字符，或者前面规则删除关键字后两边的内容可能拼成后面的多字关键字。
+ * 替换在线程内复用的StringBuilder中进行</p>
+ */
+final class Rewriter {
+
+	private static final ThreadLocal<StringBuilder[]> BUFFERS = new ThreadLocal<StringBuilder[]>() {
+		@Override
+		protected StringBuilder[] initialValue() {
+			return new StringBuilder[] {new StringBuilder(), new StringBuilder()};
+		}
+	};
+
+	/**
+	 * 每轮替换一个字典树
+	 */
+	private final Node[] passes;
+
+	/**
+	 * @param rules 依次执行的规则，每条为{关键字, 替换内容}，关键字不能为空
+	 */
+	Rewriter(String[][] rules) {
+		List<Node> passes = new ArrayList<>();
+		List<String[]> current = new ArrayList<>();
+		for (String[] rule : rules) {
+			if (rule[0].isEmpty()) throw new IllegalArgumentException("关键字不能为空");
+			if (dependsOn(rule, current)) {
+				passes.add(compile(current));
+				current = new ArrayList<>();
+			}
+			current.add(rule);
+		}
+		if (!current.isEmpty()) passes.add(compile(current));
+		this.passes = passes.toArray(new Node[passes.size()]);
+	}
+
+	/**
+	 * 替换文本
+	 *
+	 * @param text 文本
+	 * @return 替换后的文本
+	 */
+	String rewrite(String text) {
+		StringBuilder[] buffers = BUFFERS.get();
+		CharSequence input = text;
+		for (int i = 0; i < passes.length; i++) {
+			StringBuilder output = buffers[i & 1];
+			output.setLength(0);
+			rewrite(passes[i], input, output);
+			input = output;
+		}
+		return input.toString();
+	}
+
+	int passCount() {
+		return passes.length;
+	}
+
+	private static void rewrite(Node root, CharSequence input, StringBuilder output) {
+		int length = input.length();
+		int i = 0;
+		while (i < length) {
+			Node node = root;
+			String value = null;
+			int end = i;
+			for (int j = i; j < length; j++) {
+				node = node.child(input.charAt(j));
+				if (node == null) break;
+				if (node.value != null) {
+					value = node.value;
+					end = j + 1;
+				}
+			}
+			if (value != null) {
+				output.append(value);
+				i = end;
+			} else {
+				output.append(input.charAt(i++));
+			}
+		}
+	}
+
+	/**
+	 * 规则是否需要在本轮已有规则的结果上匹配
+	 */
+	private static boolean dependsOn(String[] rule, List<String[]> earlier) {
+		String key = rule[0];
+		for (String[] other : earlier) {
+			String otherKey = other[0];
+			String otherValue = other[1];
+			/*
+			 * 前面的关键字先被替换，后面包含它的关键字就匹配不到了
+			 */
+			if (key.length() > otherKey.length() && key.contains(otherKey)) return true;
+			if (overlaps(key, otherKey) || overlaps(otherKey, key)) return true;
+			for (int i = 0; i < key.length(); i++) {
+				if (otherValue.indexOf(key.charAt(i)) >= 0) return true;
+			}
+			if (otherValue.isEmpty() && key.length() > 1) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * a的某个真后缀是否为b的真前缀
+	 */
+	private static boolean overlaps(String a, String b) {
+		for (int n = 1; n < a.length() && n < b.length(); n++) {
+			if (a.regionMatches(a.length() - n, b, 0, n)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 同一关键字以先出现的规则为准
+	 */
+	private static Node compile(List<String[]> rules) {
+		Node root = new Node();
+		for (String[] rule : rules) {
+			Node node = root;
+			for (int i = 0; i < rule[0].length(); i++) node = node.add(rule[0].charAt(i));
+			if (node.value == null) node.value = rule[1];
+		}
+		return root;
+	}
+
+	/**
+	 * 字典树节点，子节点按字符排序后二分查找
+	 */
+	private static class Node {
+
+		char[] keys = new char[0];
+
+		Node[] children = new Node[0];
+
+		/**
+		 * 关键字在此结束时的替换内容
+		 */
+		String value;
+
+		Node child(char ch) {
+			int index = Arrays.binarySearch(keys, ch);
+			return index < 0 ? null : children[index];
+		}
+
+		Node add(char ch) {
+			int index = Arrays.binarySearch(keys, ch);
+			if (index >= 0) return children[index];
+			index = -index - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			newKeys[index] = ch;
+			newChildren[index] = new Node();
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+			System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[index];
+		}
+	}
+}
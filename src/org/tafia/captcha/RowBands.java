@@ -0,0 +1,104 @@
+package org.tafia.captcha;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * 按行分块并行处理图片
+ *
+ * <p>像素数达到阈值时在ForkJoinPool.commonPool中将行范围不断二分，直到每块不超过BAND_PIXELS个像素，
+ * 否则在当前线程一次处理全部行。各块只写自己的行，需要相邻行的处理应从另一份未修改的数据中读取。
+ * 分块结果按行的顺序两两归并</p>
+ */
+final class RowBands {
+
+	/**
+	 * 默认的并行像素数阈值，约为1280*800
+	 */
+	static final int DEFAULT_PIXELS = 1 << 20;
+
+	/**
+	 * 每块的像素数上限
+	 */
+	private static final int BAND_PIXELS = 1 << 16;
+
+	/**
+	 * 处理[from, to)行
+	 */
+	interface Rows {
+		void run(int from, int to);
+	}
+
+	/**
+	 * 处理[from, to)行并返回这些行的统计结果
+	 */
+	interface Reduce<T> {
+		T run(int from, int to);
+	}
+
+	private RowBands() {}
+
+	/**
+	 * 是否并行处理
+	 *
+	 * @param threshold 并行的像素数阈值，小于等于0表示不并行
+	 */
+	static boolean parallel(int width, int height, int threshold) {
+		return threshold > 0 && (long) width * height >= threshold && height > 1;
+	}
+
+	static void run(int width, int height, int threshold, Rows rows) {
+		reduce(width, height, threshold, (from, to) -> {
+			rows.run(from, to);
+			return null;
+		}, (a, b) -> null);
+	}
+
+	/**
+	 * 分块处理并归并结果
+	 *
+	 * @param band 每块的处理
+	 * @param merge 归并相邻两块的结果，前一块在前
+	 * @return 全部行的结果
+	 */
+	static <T> T reduce(int width, int height, int threshold, Reduce<T> band, BinaryOperator<T> merge) {
+		if (!parallel(width, height, threshold)) return band.run(0, height);
+		int rows = Math.max(1, BAND_PIXELS / Math.max(width, 1));
+		return ForkJoinPool.commonPool().invoke(new Band<>(band, merge, 0, height, rows));
+	}
+
+	private static class Band<T> extends RecursiveTask<T> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Reduce<T> band;
+
+		private final BinaryOperator<T> merge;
+
+		private final int from;
+
+		private final int to;
+
+		private final int rows;
+
+		Band(Reduce<T> band, BinaryOperator<T> merge, int from, int to, int rows) {
+			this.band = band;
+			this.merge = merge;
+			this.from = from;
+			this.to = to;
+			this.rows = rows;
+		}
+
+		@Override
+		protected T compute() {
+			if (to - from <= rows) return band.run(from, to);
+			int middle = (from + to) >>> 1;
+			Band<T> upper = new Band<>(band, merge, from, middle, rows);
+			Band<T> lower = new Band<>(band, merge, middle, to, rows);
+			lower.fork();
+			T first = upper.compute();
+			return merge.apply(first, lower.join());
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package org.tafia.captcha;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tafia.captcha.CaptchaParse.CaptchaConfig;
+
+/**
+ * 字符模板识别
+ *
+ * <p>用于字体固定的验证码，不依赖Tesseract。字符图片保持宽高比缩放到32*32后居中，
+ * 按行打包为16个long作为模板，识别时逐个计算异或后的置位数（汉明距离），
+ * 取距离最小的模板。模板由标注过的图片训练得到，可以保存到文件</p>
+ *
+ * <p>训练目录中的图片以验证码内容命名，如ab3d.png，同一内容的多张图片以下划线区分，
+ * 如ab3d_2.png</p>
+ */
+public class TemplateRecognizer {
+
+	/**
+	 * 归一化后的边长
+	 */
+	static final int SIZE = 32;
+
+	/**
+	 * 每个模板的long数量，每个long存放两行
+	 */
+	private static final int WORDS = SIZE * SIZE / 64;
+
+	private static final int MAGIC = 0x54504C31;
+
+	private final List<Template> templates = new ArrayList<>();
+
+	/**
+	 * 单个字符的识别结果
+	 */
+	public static class Match {
+
+		private final char label;
+
+		private final int distance;
+
+		private final double confidence;
+
+		Match(char label, int distance, double confidence) {
+			this.label = label;
+			this.distance = distance;
+			this.confidence = confidence;
+		}
+
+		public char getLabel() {
+			return label;
+		}
+
+		/**
+		 * 与最近模板不同的像素数，最大为32*32
+		 */
+		public int getDistance() {
+			return distance;
+		}
+
+		/**
+		 * 置信度，0到1之间
+		 *
+		 * <p>1减去最近模板距离与最近的其它字符模板距离之比，两者相等时为0。
+		 * 只有一种字符时为1减去距离占像素总数的比例</p>
+		 */
+		public double getConfidence() {
+			return confidence;
+		}
+	}
+
+	private static class Template {
+
+		final char label;
+
+		final long[] bits;
+
+		Template(char label, long[] bits) {
+			this.label = label;
+			this.bits = bits;
+		}
+	}
+
+	/**
+	 * 添加模板
+	 *
+	 * @param label 字符
+	 * @param glyph 字符的二值图片
+	 */
+	public synchronized void add(char label, BinaryImage glyph) {
+		templates.add(new Template(label, normalize(glyph)));
+	}
+
+	public synchronized int size() {
+		return templates.size();
+	}
+
+	/**
+	 * 用标注过的图片训练
+	 *
+	 * <p>图片经过解析流程处理后按字符切割，切割数量与标注字符数不同的图片被忽略</p>
+	 * @param dir 训练图片目录
+	 * @param pipeline 解析流程，必须包含二值化
+	 * @return 使用的图片数量
+	 */
+	public int train(Path dir, CaptchaPipeline pipeline) throws IOException {
+		int used = 0;
+		for (Path file : BatchParse.resolve(dir.toString())) {
+			String label = label(file);
+			if (label.isEmpty()) continue;
+			BufferedImage image = ImageLoader.load(file);
+			if (image == null) continue;
+			ImageInciser inciser = new ImageInciser(BinaryImage.of(pipeline.process(image)));
+			List<BinaryImage> glyphs = inciser.segmentBinary(label.length());
+			if (glyphs.size() != label.length()) continue;
+			for (int i = 0; i < glyphs.size(); i++) add(label.charAt(i), glyphs.get(i));
+			used++;
+		}
+		return used;
+	}
+
+	/**
+	 * 图片的标注内容：文件名去掉扩展名和第一个下划线之后的部分
+	 */
+	static String label(Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) name = name.substring(0, dot);
+		int underscore = name.indexOf('_');
+		return underscore >= 0 ? name.substring(0, underscore) : name;
+	}
+
+	/**
+	 * 识别单个字符
+	 *
+	 * @param glyph 字符的二值图片
+	 * @return 识别结果，没有模板时返回null
+	 */
+	public Match classify(BinaryImage glyph) {
+		long[] bits = normalize(glyph);
+		Template[] templates;
+		synchronized (this) {
+			templates = this.templates.toArray(new Template[this.templates.size()]);
+		}
+		if (templates.length == 0) return null;
+		/*
+		 * 最近模板，以及字符与最近模板不同的模板中最近的距离
+		 */
+		char label = 0;
+		int best = Integer.MAX_VALUE;
+		int[] distances = new int[templates.length];
+		for (int t = 0; t < templates.length; t++) {
+			long[] other = templates[t].bits;
+			int distance = 0;
+			for (int i = 0; i < WORDS; i++) distance += Long.bitCount(bits[i] ^ other[i]);
+			distances[t] = distance;
+			if (distance < best) {
+				best = distance;
+				label = templates[t].label;
+			}
+		}
+		int rival = Integer.MAX_VALUE;
+		for (int t = 0; t < templates.length; t++) {
+			if (templates[t].label != label && distances[t] < rival) rival = distances[t];
+		}
+		double confidence = rival == Integer.MAX_VALUE ? 1 - (double) best / (SIZE * SIZE)
+				: rival == 0 ? 0 : 1 - (double) best / rival;
+		return new Match(label, best, confidence);
+	}
+
+	/**
+	 * 识别多个字符并按顺序拼接
+	 *
+	 * @param glyphs 按顺序排列的字符二值图片
+	 * @return 识别结果，没有模板时返回ImageParser的识别失败内容
+	 */
+	public String recognize(List<BinaryImage> glyphs) {
+		StringBuilder sb = new StringBuilder(glyphs.size());
+		for (BinaryImage glyph : glyphs) {
+			Match match = classify(glyph);
+			if (match == null) return ImageParser.FAILURE;
+			sb.append(match.label);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 识别一行字符，按字符切割后逐个识别
+	 *
+	 * @param image 二值化处理后的图片
+	 * @param chars 字符数，0表示不限定
+	 * @return 识别结果
+	 */
+	public String recognize(BufferedImage image, int chars) {
+		return recognize(new ImageInciser(BinaryImage.of(image)).segmentBinary(chars));
+	}
+
+	/**
+	 * 保存模板
+	 */
+	public synchronized void save(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(SIZE);
+			out.writeInt(templates.size());
+			for (Template template : templates) {
+				out.writeChar(template.label);
+				for (long word : template.bits) out.writeLong(word);
+			}
+		}
+	}
+
+	/**
+	 * 读取save保存的模板
+	 */
+	public static TemplateRecognizer load(Path file) throws IOException {
+		TemplateRecognizer recognizer = new TemplateRecognizer();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != SIZE) throw new IOException("不是模板文件" + file);
+			int count = in.readInt();
+			for (int t = 0; t < count; t++) {
+				char label = in.readChar();
+				long[] bits = new long[WORDS];
+				for (int i = 0; i < WORDS; i++) bits[i] = in.readLong();
+				recognizer.templates.add(new Template(label, bits));
+			}
+		}
+		return recognizer;
+	}
+
+	/**
+	 * 保持宽高比缩放到SIZE*SIZE并居中，最近邻采样
+	 *
+	 * @return 按行打包的位，第y行第x列位于第(y*SIZE+x)位
+	 */
+	static long[] normalize(BinaryImage glyph) {
+		int scale = Math.max(glyph.width, glyph.height);
+		int w = Math.max(1, glyph.width * SIZE / scale);
+		int h = Math.max(1, glyph.height * SIZE / scale);
+		int left = (SIZE - w) / 2;
+		int top = (SIZE - h) / 2;
+		int[] columns = new int[w];
+		for (int x = 0; x < w; x++) columns[x] = (2 * x + 1) * glyph.width / (2 * w);
+		long[] bits = new long[WORDS];
+		for (int y = 0; y < h; y++) {
+			int sy = (2 * y + 1) * glyph.height / (2 * h);
+			int base = sy * glyph.stride;
+			int index = (top + y) * SIZE + left;
+			for (int x = 0; x < w; x++) {
+				int sx = columns[x];
+				if ((glyph.words[base + (sx >>> 6)] & (1L << sx)) != 0) {
+					int bit = index + x;
+					bits[bit >>> 6] |= 1L << bit;
+				}
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * 训练模板
+	 *
+	 * @param args [训练图片目录, 模板文件, 配置参数...]，配置参数格式与Bootstrap输入相同，
+	 * 如 testcase templates.bin threshold 0 noise 1
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage:TemplateRecognizer dir output [key value]...");
+			return;
+		}
+		String[] params = new String[args.length - 2];
+		System.arraycopy(args, 2, params, 0, params.length);
+		CaptchaConfig.Builder builder = new CaptchaConfig.Builder().threshold(0);
+		Bootstrap.configure(builder, params);
+		TemplateRecognizer recognizer = new TemplateRecognizer();
+		int used = recognizer.train(Paths.get(args[0]), builder.build().compile());
+		recognizer.save(Paths.get(args[1]));
+		System.out.println("trained:images=" + used + " templates=" + recognizer.size());
+	}
+}
@@ -0,0 +1,105 @@
+package org.tafia.captcha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * 识别结果缓存的测试
+ *
+ * <p>同一字体、同一版式的不同文字的图片不能互相命中，完全相同或只差几个像素的图片应命中</p>
+ */
+public class ResultCacheTest {
+
+	private static final String LANGUAGE = "eng";
+
+	@Test
+	public void differentTextsInSameFontDoNotHit() {
+		ResultCache cache = new ResultCache(16, 8);
+		cache.put(render("1234"), LANGUAGE, "1234");
+		assertNull(cache.get(render("1284"), LANGUAGE));
+		assertNull(cache.get(render("7234"), LANGUAGE));
+		cache.put(render("1284"), LANGUAGE, "1284");
+		assertEquals("1234", cache.get(render("1234"), LANGUAGE));
+		assertEquals("1284", cache.get(render("1284"), LANGUAGE));
+	}
+
+	@Test
+	public void sameFontDigitsHitOnlyThemselves() {
+		ResultCache cache = new ResultCache(10000, 0);
+		for (int i = 0; i < 2000; i++) {
+			String text = String.format("%04d", i * 5);
+			cache.put(render(text), LANGUAGE, text);
+		}
+		for (int i = 0; i < 2000; i++) {
+			String text = String.format("%04d", i * 5);
+			assertEquals(text, cache.get(render(text), LANGUAGE));
+			assertNull(cache.get(render(String.format("%04d", i * 5 + 1)), LANGUAGE));
+		}
+	}
+
+	@Test
+	public void nearDuplicateWithinToleranceHits() {
+		ResultCache cache = new ResultCache(16, 3);
+		cache.put(render("1234"), LANGUAGE, "1234");
+		BinaryImage noisy = render("1234");
+		noisy.set(0, 0);
+		noisy.set(59, 19);
+		noisy.set(30, 1);
+		assertEquals("1234", cache.get(noisy, LANGUAGE));
+		noisy.set(1, 18);
+		assertNull(cache.get(noisy, LANGUAGE));
+	}
+
+	@Test
+	public void differentLanguageOrSizeDoesNotHit() {
+		ResultCache cache = new ResultCache(16, 64);
+		cache.put(render("1234"), LANGUAGE, "1234");
+		assertNull(cache.get(render("1234"), "chi_sim"));
+		assertNull(cache.get(new BinaryImage(61, 20), LANGUAGE));
+	}
+
+	@Test
+	public void differentScopeDoesNotHit() {
+		ResultCache cache = new ResultCache(16, 0);
+		cache.put(render("1234"), Arrays.asList(LANGUAGE, null, true, 4), "1234");
+		assertNull(cache.get(render("1234"), Arrays.asList(LANGUAGE, null, false, 4)));
+		assertNull(cache.get(render("1234"), Arrays.asList(LANGUAGE, null, true, 5)));
+		assertEquals("1234", cache.get(render("1234"), Arrays.asList(LANGUAGE, null, true, 4)));
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		ResultCache cache = new ResultCache(2, 0);
+		cache.put(render("1111"), LANGUAGE, "1111");
+		cache.put(render("2222"), LANGUAGE, "2222");
+		cache.get(render("1111"), LANGUAGE);
+		cache.put(render("3333"), LANGUAGE, "3333");
+		assertEquals(2, cache.size());
+		assertNull(cache.get(render("2222"), LANGUAGE));
+		assertEquals("1111", cache.get(render("1111"), LANGUAGE));
+		assertEquals("3333", cache.get(render("3333"), LANGUAGE));
+	}
+
+	/**
+	 * 固定字体和位置绘制文字并二值化
+	 */
+	private static BinaryImage render(String text) {
+		BufferedImage image = new BufferedImage(60, 20, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.setColor(Color.BLACK);
+		g.setFont(new Font(Font.MONOSPACED, Font.BOLD, 16));
+		g.drawString(text, 4, 16);
+		g.dispose();
+		return BinaryImage.of(image);
+	}
+}